@@ -0,0 +1,130 @@
+package com.bergerkiller.bukkit.coasters.benchmarks;
+
+import java.util.List;
+
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.bergerkiller.bukkit.coasters.TCCoasters;
+import com.bergerkiller.bukkit.coasters.particles.TrackParticleWorld;
+import com.bergerkiller.bukkit.coasters.rails.TrackRailsWorld;
+import com.bergerkiller.bukkit.coasters.stats.TrackStatistics;
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoasterGenerator;
+import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
+import com.bergerkiller.bukkit.coasters.tracks.TrackWorld;
+import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
+
+/**
+ * Coaster world that can be used outside of a server. The plugin and Bukkit world are mocked.
+ * There are no players, so particles are never created and no particle world exists.
+ */
+public class BenchmarkWorld implements CoasterWorldAccess {
+    private final TCCoasters plugin;
+    private final World world;
+    private final TrackWorld tracks;
+    private final TrackRailsWorld rails;
+
+    public BenchmarkWorld() {
+        this.plugin = Mockito.mock(TCCoasters.class);
+        Mockito.when(this.plugin.allocateNodeId()).thenAnswer(new Answer<Integer>() {
+            private int nextId = 0;
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return this.nextId++;
+            }
+        });
+        Mockito.when(this.plugin.getStatistics()).thenReturn(new TrackStatistics());
+        this.world = Mockito.mock(World.class);
+        this.tracks = new TrackWorld(this);
+        this.rails = new TrackRailsWorld(this);
+    }
+
+    /**
+     * Creates a new coaster shaped like a banked helix, with a short side track
+     * attached at regular intervals to create junctions.
+     * 
+     * @param name of the coaster
+     * @param numNodes number of nodes of the helix
+     * @param junctionInterval number of helix nodes between two junctions, 0 for none
+     * @return new coaster
+     */
+    public TrackCoaster createHelix(String name, int numNodes, int junctionInterval) {
+        TrackCoaster coaster = new TrackCoaster(this.tracks, name);
+        this.tracks.getCoasters().add(coaster);
+
+        TrackNode prev = null;
+        for (int i = 0; i < numNodes; i++) {
+            double angle = 0.1 * i;
+            double radius = 40.0;
+            Vector pos = new Vector(radius * Math.cos(angle), 0.25 * i, radius * Math.sin(angle));
+            Vector up = new Vector(-0.3 * Math.cos(angle), 1.0, -0.3 * Math.sin(angle));
+            TrackNode node = coaster.createNewNode(pos, up);
+            if (prev != null) {
+                this.tracks.connect(prev, node);
+            }
+            if (junctionInterval > 0 && i > 0 && (i % junctionInterval) == 0) {
+                Vector branchPos = new Vector((radius + 4.0) * Math.cos(angle), 0.25 * i, (radius + 4.0) * Math.sin(angle));
+                this.tracks.connect(node, coaster.createNewNode(branchPos, up));
+            }
+            prev = node;
+        }
+        return coaster;
+    }
+
+    /**
+     * Generates coasters using the {@link TrackCoasterGenerator}, with junctions and links between coasters
+     * 
+     * @param numNodes total number of nodes
+     * @param seed of the generator
+     * @return generated coasters
+     */
+    public List<TrackCoaster> generate(int numNodes, long seed) {
+        TrackCoasterGenerator generator = new TrackCoasterGenerator(this.tracks, seed);
+        generator.setNumNodes(numNodes);
+        generator.setNumCoasters(Math.max(1, numNodes / 1000));
+        return generator.generate();
+    }
+
+    /**
+     * Refreshes the shape of all nodes and rebuilds the rails, like is done after loading.
+     * Particle regions are not updated, as no players exist.
+     */
+    public void refresh() {
+        for (TrackCoaster coaster : this.tracks.getCoasters()) {
+            for (TrackNode node : coaster.getNodes()) {
+                node.onShapeUpdated();
+            }
+        }
+        this.rails.rebuild();
+    }
+
+    @Override
+    public TCCoasters getPlugin() {
+        return this.plugin;
+    }
+
+    @Override
+    public World getWorld() {
+        return this.world;
+    }
+
+    @Override
+    public TrackWorld getTracks() {
+        return this.tracks;
+    }
+
+    @Override
+    public TrackParticleWorld getParticles() {
+        return null;
+    }
+
+    @Override
+    public TrackRailsWorld getRails() {
+        return this.rails;
+    }
+}
@@ -0,0 +1,68 @@
+package com.bergerkiller.bukkit.coasters.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
+
+/**
+ * Benchmarks reading and writing coasters in CSV format, without any file I/O
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackCoasterCSVBenchmark {
+    @Param({"1000", "10000"})
+    public int numNodes;
+
+    private TrackCoaster coaster;
+    private String csv;
+    private TrackCoaster loadedCoaster;
+
+    @Setup
+    public void setup() throws IOException {
+        this.coaster = new BenchmarkWorld().createHelix("csv", this.numNodes, 50);
+        StringWriter writer = new StringWriter();
+        this.coaster.write(writer);
+        this.csv = writer.toString();
+    }
+
+    // Every read is done into an empty coaster of a new world
+    @Setup(Level.Invocation)
+    public void createLoadedCoaster() {
+        BenchmarkWorld loadWorld = new BenchmarkWorld();
+        this.loadedCoaster = new TrackCoaster(loadWorld.getTracks(), "loaded");
+        loadWorld.getTracks().getCoasters().add(this.loadedCoaster);
+    }
+
+    @Benchmark
+    public String write() throws IOException {
+        StringWriter writer = new StringWriter(this.csv.length());
+        this.coaster.write(writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public TrackCoaster read() throws IOException {
+        this.loadedCoaster.read(new StringReader(this.csv));
+        return this.loadedCoaster;
+    }
+}
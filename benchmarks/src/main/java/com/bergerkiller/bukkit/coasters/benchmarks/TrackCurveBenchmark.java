@@ -0,0 +1,91 @@
+package com.bergerkiller.bukkit.coasters.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bergerkiller.bukkit.coasters.core.TrackCurve;
+import com.bergerkiller.bukkit.common.math.Quaternion;
+
+/**
+ * Benchmarks sampling the core track curves, without any coaster world.
+ * This allows for large numbers of curves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackCurveBenchmark {
+    private static final int SAMPLES_PER_CURVE = 51;
+
+    @Param({"100000", "1000000"})
+    public int numCurves;
+
+    private TrackCurve[] curves;
+    private final double[] buffer = new double[3 * SAMPLES_PER_CURVE];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1L);
+        this.curves = new TrackCurve[this.numCurves];
+        for (int i = 0; i < this.numCurves; i++) {
+            double ux = random.nextDouble() - 0.5;
+            double uz = random.nextDouble() - 0.5;
+            double n = 1.0 / Math.sqrt(ux * ux + 1.0 + uz * uz);
+            TrackCurve curve = new TrackCurve();
+            curve.setShape(0.0, 0.0, 0.0, 2.0, 0.0, 0.0,
+                           4.0, random.nextDouble(), random.nextDouble(), -2.0, 0.0, 0.0);
+            Quaternion qA = Quaternion.fromLookDirection(new Vector(0.0, 1.0, 0.0));
+            Quaternion qB = Quaternion.fromLookDirection(new Vector(ux * n, n, uz * n));
+            curve.setOrientation(qA.getX(), qA.getY(), qA.getZ(), qA.getW(),
+                                 qB.getX(), qB.getY(), qB.getZ(), qB.getW());
+            this.curves[i] = curve;
+        }
+    }
+
+    @Benchmark
+    public double samplePositions() {
+        double sum = 0.0;
+        for (TrackCurve curve : this.curves) {
+            curve.samplePositions(0.0, 0.02, SAMPLES_PER_CURVE, this.buffer);
+            sum += this.buffer[this.buffer.length - 1];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double sampleOrientations() {
+        double sum = 0.0;
+        for (TrackCurve curve : this.curves) {
+            curve.sampleOrientations(0.0, 0.02, SAMPLES_PER_CURVE, this.buffer);
+            sum += this.buffer[this.buffer.length - 1];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double getPosition() {
+        double sum = 0.0;
+        for (TrackCurve curve : this.curves) {
+            for (int i = 0; i < SAMPLES_PER_CURVE; i++) {
+                double t = 0.02 * i;
+                sum += curve.getPositionX(t) + curve.getPositionY(t) + curve.getPositionZ(t);
+            }
+        }
+        return sum;
+    }
+}
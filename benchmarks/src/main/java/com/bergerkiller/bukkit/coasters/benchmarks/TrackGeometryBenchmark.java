@@ -0,0 +1,122 @@
+package com.bergerkiller.bukkit.coasters.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
+import com.bergerkiller.bukkit.coasters.tracks.TrackConnection;
+import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
+
+/**
+ * Benchmarks the evaluation of the track curves and the building of rail paths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackGeometryBenchmark {
+    private static final int SAMPLES_PER_CONNECTION = 100;
+
+    @Param({"1000", "10000"})
+    public int numNodes;
+
+    private TrackNode[] nodes;
+    private TrackNode[] junctions;
+    private TrackConnection[] connections;
+    private final Vector out = new Vector();
+
+    @Setup
+    public void setup() {
+        BenchmarkWorld world = new BenchmarkWorld();
+        TrackCoaster coaster = world.createHelix("geometry", this.numNodes, 50);
+        world.refresh();
+
+        List<TrackNode> junctionList = new ArrayList<TrackNode>();
+        Set<TrackConnection> connectionSet = new HashSet<TrackConnection>();
+        for (TrackNode node : coaster.getNodes()) {
+            if (node.getConnections().size() > 2) {
+                junctionList.add(node);
+            }
+            connectionSet.addAll(node.getConnections());
+        }
+        this.nodes = coaster.getNodes().toArray(new TrackNode[0]);
+        this.junctions = junctionList.toArray(new TrackNode[0]);
+        this.connections = connectionSet.toArray(new TrackConnection[0]);
+    }
+
+    @Benchmark
+    public void getPosition(Blackhole blackhole) {
+        for (TrackConnection connection : this.connections) {
+            for (int i = 0; i <= SAMPLES_PER_CONNECTION; i++) {
+                blackhole.consume(connection.getPosition((double) i / SAMPLES_PER_CONNECTION));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getPositionInto(Blackhole blackhole) {
+        for (TrackConnection connection : this.connections) {
+            for (int i = 0; i <= SAMPLES_PER_CONNECTION; i++) {
+                blackhole.consume(connection.getPosition((double) i / SAMPLES_PER_CONNECTION, this.out));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getMotionVector(Blackhole blackhole) {
+        for (TrackConnection connection : this.connections) {
+            for (int i = 0; i <= SAMPLES_PER_CONNECTION; i++) {
+                blackhole.consume(connection.getMotionVector((double) i / SAMPLES_PER_CONNECTION));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getOrientation(Blackhole blackhole) {
+        for (TrackConnection connection : this.connections) {
+            for (int i = 0; i <= SAMPLES_PER_CONNECTION; i++) {
+                blackhole.consume(connection.getOrientation((double) i / SAMPLES_PER_CONNECTION, this.out));
+            }
+        }
+    }
+
+    @Benchmark
+    public void buildPath(Blackhole blackhole) {
+        for (TrackNode node : this.nodes) {
+            blackhole.consume(node.buildPath());
+        }
+    }
+
+    @Benchmark
+    public void getSortedConnections(Blackhole blackhole) {
+        for (TrackNode junction : this.junctions) {
+            blackhole.consume(junction.getSortedConnections());
+        }
+    }
+
+    @Benchmark
+    public void onShapeUpdated() {
+        for (TrackNode node : this.nodes) {
+            node.onShapeUpdated();
+        }
+    }
+}
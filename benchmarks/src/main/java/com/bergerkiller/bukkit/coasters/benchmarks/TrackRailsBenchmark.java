@@ -0,0 +1,97 @@
+package com.bergerkiller.bukkit.coasters.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bergerkiller.bukkit.coasters.rails.TrackRailsWorld;
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
+import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
+
+/**
+ * Benchmarks the storing, purging and lookup of rails information
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackRailsBenchmark {
+    @Param({"10000", "100000"})
+    public int numNodes;
+
+    private TrackRailsWorld rails;
+    private TrackNode[] nodes;
+    private IntVector3[] blocks;
+    private TrackNode[] purgedNodes;
+
+    @Setup
+    public void setup() {
+        BenchmarkWorld world = new BenchmarkWorld();
+        List<TrackNode> nodeList = new ArrayList<TrackNode>();
+        for (TrackCoaster coaster : world.generate(this.numNodes, 1L)) {
+            nodeList.addAll(coaster.getNodes());
+        }
+        world.refresh();
+
+        this.rails = world.getRails();
+        this.nodes = nodeList.toArray(new TrackNode[0]);
+
+        this.purgedNodes = new TrackNode[100];
+        for (int i = 0; i < this.purgedNodes.length; i++) {
+            this.purgedNodes[i] = this.nodes[i * this.nodes.length / this.purgedNodes.length];
+        }
+
+        // Look up the blocks around every node, most of which contain rails
+        this.blocks = new IntVector3[this.nodes.length * 3];
+        for (int i = 0; i < this.nodes.length; i++) {
+            IntVector3 block = this.nodes[i].getRailsBlock();
+            this.blocks[3 * i] = block;
+            this.blocks[3 * i + 1] = new IntVector3(block.x + 1, block.y, block.z);
+            this.blocks[3 * i + 2] = new IntVector3(block.x, block.y - 1, block.z);
+        }
+    }
+
+    @Benchmark
+    public void rebuild() {
+        this.rails.rebuild();
+    }
+
+    // Purging scans all stored rails, so only a fixed number of nodes is purged and stored again
+    @Benchmark
+    public void purgeAndStore() {
+        for (TrackNode node : this.purgedNodes) {
+            this.rails.purge(node);
+            this.rails.store(node);
+        }
+    }
+
+    @Benchmark
+    public void findAtBlock(Blackhole blackhole) {
+        for (IntVector3 block : this.blocks) {
+            blackhole.consume(this.rails.findAtBlock(block.x, block.y, block.z));
+        }
+    }
+
+    @Benchmark
+    public void findAtRails(Blackhole blackhole) {
+        for (IntVector3 block : this.blocks) {
+            blackhole.consume(this.rails.findAtRails(block.x, block.y, block.z));
+        }
+    }
+}
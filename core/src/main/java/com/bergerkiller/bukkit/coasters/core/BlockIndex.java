@@ -0,0 +1,265 @@
+package com.bergerkiller.bukkit.coasters.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps block coordinates to the values stored at that block. Most blocks store only
+ * a single value, for which no mutable list is created. Only uses plain Java, so that it
+ * can be used and tested outside of a server.<br>
+ * <br>
+ * Coordinates are packed into a single long the same way Minecraft does: 26 bits for x and z,
+ * and 12 bits for y. These keys are stored in an open-addressing hash table, so no boxing
+ * happens when getting or adding values. Coordinates that do not fit in these bits, like
+ * y-coordinates outside of [-2048 ... 2047], are stored in a separate, slower map instead.
+ * 
+ * @param <T> value type
+ */
+public final class BlockIndex<T> {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_XZ = -(1 << 25);
+    private static final int MAX_XZ = (1 << 25) - 1;
+    private static final int MIN_Y = -(1 << 11);
+    private static final int MAX_Y = (1 << 11) - 1;
+    private long[] keys = new long[MIN_CAPACITY];
+    private Object[] slots = new Object[MIN_CAPACITY]; // List<T>, null if the slot is free
+    private int count = 0;
+    private final Map<BlockKey, List<T>> outOfRange = new HashMap<BlockKey, List<T>>();
+
+    /**
+     * Gets all the values stored at a block
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return list of values, empty if none are stored. Must not be modified.
+     */
+    public List<T> get(int x, int y, int z) {
+        List<T> list;
+        if (isPackable(x, y, z)) {
+            int slot = this.findSlot(key(x, y, z));
+            list = this.getList(slot);
+        } else {
+            list = this.outOfRange.get(new BlockKey(x, y, z));
+        }
+        return (list == null) ? Collections.<T>emptyList() : list;
+    }
+
+    /**
+     * Adds a value to a block, if not already stored there
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param value to add
+     * @return True if added, False if the value was already stored at the block
+     */
+    public boolean add(int x, int y, int z, T value) {
+        if (!isPackable(x, y, z)) {
+            BlockKey key = new BlockKey(x, y, z);
+            List<T> list = this.outOfRange.get(key);
+            if (list == null) {
+                this.outOfRange.put(key, Collections.singletonList(value));
+                return true;
+            } else if (!list.contains(value)) {
+                this.outOfRange.put(key, addToList(list, value));
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        long key = key(x, y, z);
+        int slot = this.findSlot(key);
+        List<T> list = this.getList(slot);
+        if (list == null) {
+            this.keys[slot] = key;
+            this.slots[slot] = Collections.singletonList(value);
+            if (++this.count > (this.keys.length >> 1)) {
+                this.rehash(this.keys.length << 1);
+            }
+            return true;
+        } else if (!list.contains(value)) {
+            this.slots[slot] = addToList(list, value);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Removes all values matching a filter from all blocks
+     * 
+     * @param filter
+     */
+    public void removeIf(Filter<? super T> filter) {
+        boolean removed = false;
+        for (int slot = 0; slot < this.slots.length; slot++) {
+            List<T> list = this.getList(slot);
+            if (list != null && removeFromList(list, filter)) {
+                this.slots[slot] = null;
+                this.count--;
+                removed = true;
+            }
+        }
+        if (removed) {
+            // Freed slots break up the probe sequences of the keys after them
+            this.rehash(this.keys.length);
+        }
+
+        Iterator<List<T>> iter = this.outOfRange.values().iterator();
+        while (iter.hasNext()) {
+            if (removeFromList(iter.next(), filter)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all values from all blocks
+     */
+    public void clear() {
+        this.keys = new long[MIN_CAPACITY];
+        this.slots = new Object[MIN_CAPACITY];
+        this.count = 0;
+        this.outOfRange.clear();
+    }
+
+    /**
+     * Gets the number of blocks that store values
+     * 
+     * @return block count
+     */
+    public int size() {
+        return this.count + this.outOfRange.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> getList(int slot) {
+        return (List<T>) this.slots[slot];
+    }
+
+    // Finds the slot storing a key, or the free slot where it should be stored
+    private int findSlot(long key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.slots[slot] != null && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Moves all stored keys into a new table of the given capacity, which must be a power of two
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldSlots = this.slots;
+        this.keys = new long[capacity];
+        this.slots = new Object[capacity];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != null) {
+                int slot = this.findSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.slots[slot] = oldSlots[i];
+            }
+        }
+    }
+
+    // Adds a value to a list, returning the list to store, which is a new mutable list when it stored only one value
+    private static <T> List<T> addToList(List<T> list, T value) {
+        if (list.size() == 1) {
+            // Make mutable
+            list = new ArrayList<T>(list);
+        }
+        list.add(value);
+        return list;
+    }
+
+    // Removes values from a list matching a filter, returns true if no values remain and the list must be removed
+    private static <T> boolean removeFromList(List<T> list, Filter<? super T> filter) {
+        if (list.size() > 1) {
+            // List is an ArrayList - simply remove entries that should be removed
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (filter.matches(list.get(i))) {
+                    list.remove(i);
+                }
+            }
+            return list.isEmpty();
+        } else {
+            // Easy handling of already-empty lists or lists storing only one value that should be removed
+            return list.isEmpty() || filter.matches(list.get(0));
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Gets whether block coordinates can be packed into a key without losing bits
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return True if {@link #key(int, int, int)} is unique for these coordinates
+     */
+    public static boolean isPackable(int x, int y, int z) {
+        return x >= MIN_XZ && x <= MAX_XZ &&
+               z >= MIN_XZ && z <= MAX_XZ &&
+               y >= MIN_Y && y <= MAX_Y;
+    }
+
+    /**
+     * Packs block coordinates into a single long. Only unique for coordinates
+     * that are {@link #isPackable(int, int, int) packable}, other coordinates wrap around.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return key
+     */
+    public static long key(int x, int y, int z) {
+        return (((long) x & 0x3FFFFFFL) << 38) | (((long) z & 0x3FFFFFFL) << 12) | ((long) y & 0xFFFL);
+    }
+
+    /**
+     * Selects values to remove from a block index
+     * 
+     * @param <T> value type
+     */
+    public static interface Filter<T> {
+        boolean matches(T value);
+    }
+
+    // Key of blocks that can not be packed into a long
+    private static final class BlockKey {
+        private final int x, y, z;
+
+        public BlockKey(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * (31 * this.x + this.y)) + this.z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (o instanceof BlockKey) {
+                BlockKey other = (BlockKey) o;
+                return this.x == other.x && this.y == other.y && this.z == other.z;
+            } else {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.bergerkiller.bukkit.coasters.core;
+
+/**
+ * The shape of the track between two nodes: a cubic position curve and the rotation
+ * of the up-vector from one end to the other. Only uses plain Java, so that it can be used
+ * and tested outside of a server.<br>
+ * <br>
+ * The up-vector is interpolated the same way as TrainCarts' <i>Util.lerpOrientation</i> does:
+ * the rotations at both ends are slerped, and the up-vector is the forward vector of the result.
+ * The rotations are passed in as quaternions, so that only the slerp is done here.
+ */
+public final class TrackCurve {
+    // Power-basis coefficients of the position curve: p(t) = ((a*t + b)*t + c)*t + d
+    private double ax, ay, az;
+    private double bx, by, bz;
+    private double cx, cy, cz;
+    private double dx, dy, dz;
+    // Quaternions of the rotation at A and B, slerped: q(t) = qA*weightA(t) + qB*weightB(t)
+    // When the rotations are nearly the same, they are interpolated linearly instead
+    private static final double SLERP_THRESHOLD = 0.9995;
+    private double qAx, qAy, qAz, qAw = 1.0;
+    private double qBx, qBy, qBz, qBw = 1.0;
+    private boolean orientationLinear = true;
+    private double orientationAngle;
+    private double orientationSinAngle;
+
+    /**
+     * Sets the shape of the position curve
+     * 
+     * @param pAx position of end A
+     * @param pAy
+     * @param pAz
+     * @param qAx direction of end A, multiplied by its distance
+     * @param qAy
+     * @param qAz
+     * @param pBx position of end B
+     * @param pBy
+     * @param pBz
+     * @param qBx direction of end B, multiplied by its distance
+     * @param qBy
+     * @param qBz
+     */
+    public void setShape(double pAx, double pAy, double pAz, double qAx, double qAy, double qAz,
+                         double pBx, double pBy, double pBz, double qBx, double qBy, double qBz) {
+        // https://pomax.github.io/bezierinfo/#decasteljau
+        // The curve is p(t) = fpA*pA + fpB*pB + fdA*qA + fdB*qB, with
+        // fpA = 1 - 3t^2 + 2t^3, fpB = 3t^2 - 2t^3, fdA = 3t - 6t^2 + 3t^3, fdB = 3t^2 - 3t^3
+        double dpx = pBx - pAx;
+        double dpy = pBy - pAy;
+        double dpz = pBz - pAz;
+        this.ax = -2.0*dpx + 3.0*(qAx - qBx);
+        this.ay = -2.0*dpy + 3.0*(qAy - qBy);
+        this.az = -2.0*dpz + 3.0*(qAz - qBz);
+        this.bx = 3.0*dpx - 6.0*qAx + 3.0*qBx;
+        this.by = 3.0*dpy - 6.0*qAy + 3.0*qBy;
+        this.bz = 3.0*dpz - 6.0*qAz + 3.0*qBz;
+        this.cx = 3.0*qAx;
+        this.cy = 3.0*qAy;
+        this.cz = 3.0*qAz;
+        this.dx = pAx;
+        this.dy = pAy;
+        this.dz = pAz;
+    }
+
+    /**
+     * Sets the rotations at both ends, of which the forward vectors are the up-vectors.
+     * These are the quaternions created using the up-vector as look direction.
+     * 
+     * @param qAx quaternion at end A
+     * @param qAy
+     * @param qAz
+     * @param qAw
+     * @param qBx quaternion at end B
+     * @param qBy
+     * @param qBz
+     * @param qBw
+     */
+    public void setOrientation(double qAx, double qAy, double qAz, double qAw, double qBx, double qBy, double qBz, double qBw) {
+        // https://en.wikipedia.org/wiki/Slerp
+        double dot = qAx*qBx + qAy*qBy + qAz*qBz + qAw*qBw;
+        if (dot < 0.0) {
+            // Use the shortest path, q and -q are the same rotation
+            dot = -dot;
+            qBx = -qBx;
+            qBy = -qBy;
+            qBz = -qBz;
+            qBw = -qBw;
+        }
+        this.qAx = qAx;
+        this.qAy = qAy;
+        this.qAz = qAz;
+        this.qAw = qAw;
+        this.qBx = qBx;
+        this.qBy = qBy;
+        this.qBz = qBz;
+        this.qBw = qBw;
+        this.orientationLinear = (dot >= SLERP_THRESHOLD);
+        if (this.orientationLinear) {
+            this.orientationAngle = 0.0;
+            this.orientationSinAngle = 0.0;
+        } else {
+            this.orientationAngle = Math.acos(dot);
+            this.orientationSinAngle = Math.sin(this.orientationAngle);
+        }
+    }
+
+    public double getPositionX(double t) {
+        return ((this.ax*t + this.bx)*t + this.cx)*t + this.dx;
+    }
+
+    public double getPositionY(double t) {
+        return ((this.ay*t + this.by)*t + this.cy)*t + this.dy;
+    }
+
+    public double getPositionZ(double t) {
+        return ((this.az*t + this.bz)*t + this.cz)*t + this.dz;
+    }
+
+    /**
+     * Gets the x-component of the derivative of the position curve. The motion
+     * vector is not normalized.
+     * 
+     * @param t [0 ... 1]
+     * @return x-component of the motion vector
+     */
+    public double getMotionX(double t) {
+        return (3.0*this.ax*t + 2.0*this.bx)*t + this.cx;
+    }
+
+    public double getMotionY(double t) {
+        return (3.0*this.ay*t + 2.0*this.by)*t + this.cy;
+    }
+
+    public double getMotionZ(double t) {
+        return (3.0*this.az*t + 2.0*this.bz)*t + this.cz;
+    }
+
+    /**
+     * Gets the weight of the rotation at end A in the rotation at t
+     * 
+     * @param t [0 ... 1]
+     * @return weight of A
+     */
+    public double getOrientationWeightA(double t) {
+        if (this.orientationLinear) {
+            return 1.0 - t;
+        } else {
+            return Math.sin((1.0 - t) * this.orientationAngle) / this.orientationSinAngle;
+        }
+    }
+
+    /**
+     * Gets the weight of the rotation at end B in the rotation at t
+     * 
+     * @param t [0 ... 1]
+     * @return weight of B
+     */
+    public double getOrientationWeightB(double t) {
+        if (this.orientationLinear) {
+            return t;
+        } else {
+            return Math.sin(t * this.orientationAngle) / this.orientationSinAngle;
+        }
+    }
+
+    /**
+     * Gets the x-component of the up-vector of the rotation interpolated using two weights
+     * 
+     * @param wA weight of the rotation at end A, see {@link #getOrientationWeightA(double)}
+     * @param wB weight of the rotation at end B, see {@link #getOrientationWeightB(double)}
+     * @return x-component of the up-vector
+     */
+    public double getOrientationX(double wA, double wB) {
+        double x = wA*this.qAx + wB*this.qBx;
+        double y = wA*this.qAy + wB*this.qBy;
+        double z = wA*this.qAz + wB*this.qBz;
+        double w = wA*this.qAw + wB*this.qBw;
+        return 2.0 * (x*z + w*y) / (x*x + y*y + z*z + w*w);
+    }
+
+    public double getOrientationY(double wA, double wB) {
+        double x = wA*this.qAx + wB*this.qBx;
+        double y = wA*this.qAy + wB*this.qBy;
+        double z = wA*this.qAz + wB*this.qBz;
+        double w = wA*this.qAw + wB*this.qBw;
+        return 2.0 * (y*z - w*x) / (x*x + y*y + z*z + w*w);
+    }
+
+    public double getOrientationZ(double wA, double wB) {
+        double x = wA*this.qAx + wB*this.qBx;
+        double y = wA*this.qAy + wB*this.qBy;
+        double z = wA*this.qAz + wB*this.qBz;
+        double w = wA*this.qAw + wB*this.qBw;
+        double lenSq = x*x + y*y + z*z + w*w;
+        return (lenSq - 2.0 * (x*x + y*y)) / lenSq;
+    }
+
+    /**
+     * Calculates the positions along this curve at evenly spaced t.
+     * Uses forward differencing, so that every position after the first
+     * only takes three additions per axis. The x/y/z coordinates are stored after one another.
+     * 
+     * @param t0 t of the first position [0 ... 1]
+     * @param dt difference in t between two positions, can be negative
+     * @param count number of positions to calculate
+     * @param out array to store the coordinates in, length must be at least 3 * count
+     */
+    public void samplePositions(double t0, double dt, int count, double[] out) {
+        samplePositions(this.ax, this.bx, this.cx, this.dx, t0, dt, count, out, 0);
+        samplePositions(this.ay, this.by, this.cy, this.dy, t0, dt, count, out, 1);
+        samplePositions(this.az, this.bz, this.cz, this.dz, t0, dt, count, out, 2);
+    }
+
+    // Forward differencing of a single axis of the cubic a*t^3 + b*t^2 + c*t + d
+    private static void samplePositions(double a, double b, double c, double d, double t0, double dt, int count, double[] out, int offset) {
+        double dt2 = dt * dt;
+        double dt3 = dt2 * dt;
+        double p = ((a*t0 + b)*t0 + c)*t0 + d;
+        double d1 = a*(3.0*t0*t0*dt + 3.0*t0*dt2 + dt3) + b*(2.0*t0*dt + dt2) + c*dt;
+        double d2 = a*(6.0*t0*dt2 + 6.0*dt3) + 2.0*b*dt2;
+        double d3 = 6.0*a*dt3;
+        for (int i = offset; i < (3 * count); i += 3) {
+            out[i] = p;
+            p += d1;
+            d1 += d2;
+            d2 += d3;
+        }
+    }
+
+    /**
+     * Calculates the up-vectors along this curve at evenly spaced t.
+     * The slerp angle increases by the same step every point, so its cosine and sine are rotated
+     * along using the angle addition formulas. The x/y/z coordinates are stored after one another.
+     * 
+     * @param t0 t of the first up-vector [0 ... 1]
+     * @param dt difference in t between two up-vectors, can be negative
+     * @param count number of up-vectors to calculate
+     * @param out array to store the coordinates in, length must be at least 3 * count
+     */
+    public void sampleOrientations(double t0, double dt, int count, double[] out) {
+        if (this.orientationLinear) {
+            for (int i = 0, k = 0; i < count; i++, k += 3) {
+                double t = t0 + i * dt;
+                this.storeOrientation(1.0 - t, t, out, k);
+            }
+            return;
+        }
+
+        // weightA = sin((1-t)*angle) / sin(angle) = cos(t*angle) - sin(t*angle) * cos(angle) / sin(angle)
+        // weightB = sin(t*angle) / sin(angle)
+        double cot = Math.cos(this.orientationAngle) / this.orientationSinAngle;
+        double invSin = 1.0 / this.orientationSinAngle;
+        double cos = Math.cos(t0 * this.orientationAngle);
+        double sin = Math.sin(t0 * this.orientationAngle);
+        double cosStep = Math.cos(dt * this.orientationAngle);
+        double sinStep = Math.sin(dt * this.orientationAngle);
+        for (int k = 0; k < (3 * count); k += 3) {
+            this.storeOrientation(cos - sin * cot, sin * invSin, out, k);
+            double cosNext = cos*cosStep - sin*sinStep;
+            sin = sin*cosStep + cos*sinStep;
+            cos = cosNext;
+        }
+    }
+
+    // Stores the up-vector of the rotation interpolated using two weights
+    private void storeOrientation(double wA, double wB, double[] out, int offset) {
+        double x = wA*this.qAx + wB*this.qBx;
+        double y = wA*this.qAy + wB*this.qBy;
+        double z = wA*this.qAz + wB*this.qBz;
+        double w = wA*this.qAw + wB*this.qBw;
+        double f = 2.0 / (x*x + y*y + z*z + w*w);
+        out[offset] = f * (x*z + w*y);
+        out[offset + 1] = f * (y*z - w*x);
+        out[offset + 2] = 1.0 - f * (x*x + y*y);
+    }
+}
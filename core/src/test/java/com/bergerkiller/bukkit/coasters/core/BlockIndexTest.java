@@ -0,0 +1,127 @@
+package com.bergerkiller.bukkit.coasters.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class BlockIndexTest extends TestCase {
+
+    public void testAddGet() {
+        BlockIndex<String> index = new BlockIndex<String>();
+        assertTrue(index.add(1, 2, 3, "a"));
+        assertTrue(index.add(1, 2, 3, "b"));
+        assertTrue(index.add(-1, -2, -3, "c"));
+        assertEquals(Arrays.asList("a", "b"), index.get(1, 2, 3));
+        assertEquals(Collections.singletonList("c"), index.get(-1, -2, -3));
+        assertTrue(index.get(1, 2, 4).isEmpty());
+        assertEquals(2, index.size());
+    }
+
+    public void testAddDuplicate() {
+        BlockIndex<String> index = new BlockIndex<String>();
+        assertTrue(index.add(5, 64, 5, "a"));
+        assertFalse(index.add(5, 64, 5, "a"));
+        assertTrue(index.add(5, 64, 5, "b"));
+        assertFalse(index.add(5, 64, 5, "b"));
+        assertEquals(Arrays.asList("a", "b"), index.get(5, 64, 5));
+        assertEquals(1, index.size());
+    }
+
+    public void testRemoveIf() {
+        BlockIndex<String> index = new BlockIndex<String>();
+        for (int i = 0; i < 100; i++) {
+            index.add(i, 0, 0, "keep");
+            index.add(i, 0, 0, "remove");
+            index.add(0, i, 1, "remove");
+        }
+        index.removeIf(new BlockIndex.Filter<String>() {
+            @Override
+            public boolean matches(String value) {
+                return value.equals("remove");
+            }
+        });
+        assertEquals(100, index.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Collections.singletonList("keep"), index.get(i, 0, 0));
+            assertTrue(index.get(0, i, 1).isEmpty());
+        }
+
+        // Blocks stored after removing must still be found
+        assertTrue(index.add(0, 5, 1, "new"));
+        assertEquals(Collections.singletonList("new"), index.get(0, 5, 1));
+    }
+
+    public void testClear() {
+        BlockIndex<String> index = new BlockIndex<String>();
+        index.add(1, 2, 3, "a");
+        index.add(1, 5000, 3, "b");
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.get(1, 2, 3).isEmpty());
+        assertTrue(index.get(1, 5000, 3).isEmpty());
+    }
+
+    public void testGrow() {
+        BlockIndex<Integer> index = new BlockIndex<Integer>();
+        for (int x = -50; x < 50; x++) {
+            for (int z = -50; z < 50; z++) {
+                assertTrue(index.add(x, x + z, z, x * z));
+            }
+        }
+        assertEquals(10000, index.size());
+        for (int x = -50; x < 50; x++) {
+            for (int z = -50; z < 50; z++) {
+                assertEquals(Collections.singletonList(x * z), index.get(x, x + z, z));
+            }
+        }
+    }
+
+    public void testKeyUnique() {
+        Set<Long> keys = new HashSet<Long>();
+        int[] coords = new int[] { -(1 << 25), -2048, -1, 0, 1, 2047, (1 << 25) - 1 };
+        for (int x : coords) {
+            for (int y = -2048; y < 2048; y += 1023) {
+                for (int z : coords) {
+                    assertTrue(BlockIndex.isPackable(x, y, z));
+                    assertTrue(keys.add(BlockIndex.key(x, y, z)));
+                }
+            }
+        }
+        assertFalse(BlockIndex.isPackable(0, 2048, 0));
+        assertFalse(BlockIndex.isPackable(0, -2049, 0));
+        assertFalse(BlockIndex.isPackable(1 << 25, 0, 0));
+        assertFalse(BlockIndex.isPackable(0, 0, -(1 << 25) - 1));
+    }
+
+    public void testOutOfRange() {
+        // These coordinates have the same key, but are different blocks
+        assertEquals(BlockIndex.key(0, 5000, 0), BlockIndex.key(0, 5000 - 4096, 0));
+        assertEquals(BlockIndex.key(1 << 26, 0, 0), BlockIndex.key(0, 0, 0));
+
+        BlockIndex<String> index = new BlockIndex<String>();
+        assertTrue(index.add(0, 5000, 0, "high"));
+        assertTrue(index.add(0, 5000 - 4096, 0, "low"));
+        assertTrue(index.add(1 << 26, 0, 0, "far"));
+        assertTrue(index.add(0, 0, 0, "origin"));
+        assertFalse(index.add(0, 5000, 0, "high"));
+        assertTrue(index.add(0, 5000, 0, "high2"));
+        assertEquals(Arrays.asList("high", "high2"), index.get(0, 5000, 0));
+        assertEquals(Collections.singletonList("low"), index.get(0, 5000 - 4096, 0));
+        assertEquals(Collections.singletonList("far"), index.get(1 << 26, 0, 0));
+        assertEquals(Collections.singletonList("origin"), index.get(0, 0, 0));
+        assertEquals(4, index.size());
+
+        index.removeIf(new BlockIndex.Filter<String>() {
+            @Override
+            public boolean matches(String value) {
+                return value.startsWith("high");
+            }
+        });
+        assertTrue(index.get(0, 5000, 0).isEmpty());
+        assertEquals(Collections.singletonList("low"), index.get(0, 5000 - 4096, 0));
+        assertEquals(3, index.size());
+    }
+}
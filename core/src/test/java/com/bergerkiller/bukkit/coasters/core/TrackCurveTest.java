@@ -0,0 +1,203 @@
+package com.bergerkiller.bukkit.coasters.core;
+
+import org.bukkit.util.Vector;
+
+import com.bergerkiller.bukkit.common.math.Quaternion;
+import com.bergerkiller.bukkit.tc.Util;
+
+import junit.framework.TestCase;
+
+public class TrackCurveTest extends TestCase {
+    private static final double EPSILON = 1e-9;
+
+    private static final int NUM_SAMPLES = 33;
+    // Curve shape used by the tests: position and direction multiplied by distance of both ends
+    private static final double[] P_A = new double[] { 1.0, 2.0, 3.0 };
+    private static final double[] Q_A = new double[] { 2.0, 0.0, 1.0 };
+    private static final double[] P_B = new double[] { 6.0, 4.0, -2.0 };
+    private static final double[] Q_B = new double[] { -1.0, 1.5, 0.5 };
+
+    private static TrackCurve createCurve() {
+        TrackCurve curve = new TrackCurve();
+        curve.setShape(P_A[0], P_A[1], P_A[2], Q_A[0], Q_A[1], Q_A[2],
+                       P_B[0], P_B[1], P_B[2], Q_B[0], Q_B[1], Q_B[2]);
+        return curve;
+    }
+
+    // Position on the curve as calculated by the de Casteljau formula, which the power-basis coefficients replace
+    private static double getBaselinePosition(double t, int axis) {
+        double ff = 3.0 * (t - t * t);
+        double fdB = t * ff;
+        double fdA = (1.0 - t) * ff;
+        double fpB = fdB + t * t * t;
+        double fpA = 1.0 - fpB;
+        return fpA * P_A[axis] + fpB * P_B[axis] + fdA * Q_A[axis] + fdB * Q_B[axis];
+    }
+
+    public void testEndPoints() {
+        TrackCurve curve = createCurve();
+        assertEquals(1.0, curve.getPositionX(0.0), EPSILON);
+        assertEquals(2.0, curve.getPositionY(0.0), EPSILON);
+        assertEquals(3.0, curve.getPositionZ(0.0), EPSILON);
+        assertEquals(6.0, curve.getPositionX(1.0), EPSILON);
+        assertEquals(4.0, curve.getPositionY(1.0), EPSILON);
+        assertEquals(-2.0, curve.getPositionZ(1.0), EPSILON);
+    }
+
+    public void testMotion() {
+        // The motion at the ends points along the directions, towards the other end
+        TrackCurve curve = createCurve();
+        assertEquals(6.0, curve.getMotionX(0.0), EPSILON);
+        assertEquals(0.0, curve.getMotionY(0.0), EPSILON);
+        assertEquals(3.0, curve.getMotionZ(0.0), EPSILON);
+        assertEquals(3.0, curve.getMotionX(1.0), EPSILON);
+        assertEquals(-4.5, curve.getMotionY(1.0), EPSILON);
+        assertEquals(-1.5, curve.getMotionZ(1.0), EPSILON);
+
+        // Derivative matches the change in position
+        double h = 1e-6;
+        for (double t = 0.1; t < 1.0; t += 0.2) {
+            assertEquals((curve.getPositionX(t + h) - curve.getPositionX(t - h)) / (2.0 * h), curve.getMotionX(t), 1e-6);
+            assertEquals((curve.getPositionY(t + h) - curve.getPositionY(t - h)) / (2.0 * h), curve.getMotionY(t), 1e-6);
+            assertEquals((curve.getPositionZ(t + h) - curve.getPositionZ(t - h)) / (2.0 * h), curve.getMotionZ(t), 1e-6);
+        }
+    }
+
+    public void testPositionMatchesBaseline() {
+        TrackCurve curve = createCurve();
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            double t = (double) i / (double) (NUM_SAMPLES - 1);
+            assertEquals(getBaselinePosition(t, 0), curve.getPositionX(t), EPSILON);
+            assertEquals(getBaselinePosition(t, 1), curve.getPositionY(t), EPSILON);
+            assertEquals(getBaselinePosition(t, 2), curve.getPositionZ(t), EPSILON);
+        }
+    }
+
+    public void testSamplePositionsForward() {
+        assertSamplePositions(0.0, 1.0 / (double) (NUM_SAMPLES - 1));
+        assertSamplePositions(0.25, 0.5 / (double) (NUM_SAMPLES - 1));
+    }
+
+    public void testSamplePositionsBackward() {
+        assertSamplePositions(1.0, -1.0 / (double) (NUM_SAMPLES - 1));
+        assertSamplePositions(0.75, -0.5 / (double) (NUM_SAMPLES - 1));
+    }
+
+    public void testOrientation() {
+        // Rotation at B turns the forward vector from +Z at A to +X
+        double h = Math.sqrt(0.5);
+        TrackCurve curve = new TrackCurve();
+        curve.setOrientation(0.0, 0.0, 0.0, 1.0, 0.0, h, 0.0, h);
+        assertOrientation(curve, 0.0, 0.0, 0.0, 1.0);
+        assertOrientation(curve, 1.0, 1.0, 0.0, 0.0);
+        assertOrientation(curve, 0.5, h, 0.0, h);
+    }
+
+    public void testOrientationSame() {
+        TrackCurve curve = new TrackCurve();
+        curve.setOrientation(0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0);
+        assertOrientation(curve, 0.5, 0.0, 0.0, 1.0);
+
+        // Negated quaternion is the same rotation, nothing should rotate
+        double h = Math.sqrt(0.5);
+        curve.setOrientation(h, 0.0, 0.0, h, -h, 0.0, 0.0, -h);
+        assertOrientation(curve, 0.0, 0.0, -1.0, 0.0);
+        assertOrientation(curve, 0.5, 0.0, -1.0, 0.0);
+        assertOrientation(curve, 1.0, 0.0, -1.0, 0.0);
+    }
+
+    public void testSampleOrientations() {
+        // Both a slerped and a (nearly the same, linear) interpolated rotation
+        TrackCurve[] curves = new TrackCurve[] {
+                createOrientationCurve(new Vector(0.0, 1.0, 0.0), new Vector(0.6, 0.0, 0.8)),
+                createOrientationCurve(new Vector(0.0, 1.0, 0.0), new Vector(0.0, 1.0, 0.01))
+        };
+        for (TrackCurve curve : curves) {
+            assertSampleOrientations(curve, 0.0, 1.0 / (double) (NUM_SAMPLES - 1));
+            assertSampleOrientations(curve, 1.0, -1.0 / (double) (NUM_SAMPLES - 1));
+            assertSampleOrientations(curve, 0.3, 0.2 / (double) (NUM_SAMPLES - 1));
+        }
+    }
+
+    public void testOrientationMatchesLerpOrientation() {
+        // Up-vectors in the same vertical plane
+        assertMatchesLerpOrientation(new Vector(Math.sin(0.2), Math.cos(0.2), 0.0), new Vector(Math.sin(1.2), Math.cos(1.2), 0.0));
+        assertMatchesLerpOrientation(new Vector(0.0, Math.cos(0.1), Math.sin(0.1)), new Vector(0.0, Math.cos(2.5), Math.sin(2.5)));
+        assertMatchesLerpOrientation(new Vector(0.0, Math.cos(0.4), Math.sin(0.4)), new Vector(0.0, Math.cos(0.4), Math.sin(0.4)));
+
+        // Up-vectors in different vertical planes: banked left at A, banked forward at B
+        assertMatchesLerpOrientation(new Vector(-0.5, Math.sqrt(0.75), 0.0), new Vector(0.0, Math.sqrt(0.75), 0.5));
+        assertMatchesLerpOrientation(new Vector(-0.6, 0.8, 0.0), new Vector(0.48, 0.6, -0.64));
+
+        // Nearly the same up-vectors
+        assertMatchesLerpOrientation(new Vector(0.0, 1.0, 0.0), new Vector(0.0, Math.cos(0.01), Math.sin(0.01)));
+    }
+
+    public void testOppositeOrientationMatchesLerpOrientation() {
+        assertMatchesLerpOrientation(new Vector(1.0, 0.0, 0.0), new Vector(-1.0, 0.0, 0.0));
+        assertMatchesLerpOrientation(new Vector(0.0, 0.8, 0.6), new Vector(0.0, -0.8, -0.6));
+    }
+
+    private static void assertSamplePositions(double t0, double dt) {
+        TrackCurve curve = createCurve();
+        double[] positions = new double[3 * NUM_SAMPLES];
+        curve.samplePositions(t0, dt, NUM_SAMPLES, positions);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            double t = t0 + i * dt;
+            assertEquals(getBaselinePosition(t, 0), positions[3 * i], EPSILON);
+            assertEquals(getBaselinePosition(t, 1), positions[3 * i + 1], EPSILON);
+            assertEquals(getBaselinePosition(t, 2), positions[3 * i + 2], EPSILON);
+        }
+    }
+
+    // Creates a curve with the rotations TrackConnection uses for the up-vectors at both ends
+    private static TrackCurve createOrientationCurve(Vector upA, Vector upB) {
+        Quaternion qA = Quaternion.fromLookDirection(upA);
+        Quaternion qB = Quaternion.fromLookDirection(upB);
+        TrackCurve curve = new TrackCurve();
+        curve.setOrientation(qA.getX(), qA.getY(), qA.getZ(), qA.getW(),
+                             qB.getX(), qB.getY(), qB.getZ(), qB.getW());
+        return curve;
+    }
+
+    private static void assertSampleOrientations(TrackCurve curve, double t0, double dt) {
+        double[] orientations = new double[3 * NUM_SAMPLES];
+        curve.sampleOrientations(t0, dt, NUM_SAMPLES, orientations);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            double t = t0 + i * dt;
+            double wA = curve.getOrientationWeightA(t);
+            double wB = curve.getOrientationWeightB(t);
+            assertEquals(curve.getOrientationX(wA, wB), orientations[3 * i], EPSILON);
+            assertEquals(curve.getOrientationY(wA, wB), orientations[3 * i + 1], EPSILON);
+            assertEquals(curve.getOrientationZ(wA, wB), orientations[3 * i + 2], EPSILON);
+        }
+    }
+
+    private static void assertMatchesLerpOrientation(Vector upA, Vector upB) {
+        TrackCurve curve = createOrientationCurve(upA, upB);
+        double[] orientations = new double[3 * NUM_SAMPLES];
+        curve.sampleOrientations(0.0, 1.0 / (double) (NUM_SAMPLES - 1), NUM_SAMPLES, orientations);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            double t = (double) i / (double) (NUM_SAMPLES - 1);
+            Vector expected = Util.lerpOrientation(upA, upB, t);
+            assertVector(expected, new Vector(orientations[3 * i], orientations[3 * i + 1], orientations[3 * i + 2]));
+            double wA = curve.getOrientationWeightA(t);
+            double wB = curve.getOrientationWeightB(t);
+            assertVector(expected, new Vector(curve.getOrientationX(wA, wB), curve.getOrientationY(wA, wB), curve.getOrientationZ(wA, wB)));
+        }
+    }
+
+    private static void assertVector(Vector expected, Vector actual) {
+        assertEquals(expected.getX(), actual.getX(), 1e-6);
+        assertEquals(expected.getY(), actual.getY(), 1e-6);
+        assertEquals(expected.getZ(), actual.getZ(), 1e-6);
+    }
+
+    private static void assertOrientation(TrackCurve curve, double t, double x, double y, double z) {
+        double wA = curve.getOrientationWeightA(t);
+        double wB = curve.getOrientationWeightB(t);
+        assertEquals(x, curve.getOrientationX(wA, wB), EPSILON);
+        assertEquals(y, curve.getOrientationY(wA, wB), EPSILON);
+        assertEquals(z, curve.getOrientationZ(wA, wB), EPSILON);
+    }
+}
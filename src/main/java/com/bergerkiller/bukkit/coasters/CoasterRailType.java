@@ -11,6 +11,7 @@ import org.bukkit.block.BlockFace;
 
 import com.bergerkiller.bukkit.coasters.rails.TrackRailsSection;
 import com.bergerkiller.bukkit.coasters.rails.TrackRailsWorld;
+import com.bergerkiller.bukkit.coasters.stats.TrackStatistics;
 import com.bergerkiller.bukkit.coasters.tracks.TrackConnection;
 import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
 import com.bergerkiller.bukkit.common.utils.BlockUtil;
@@ -40,7 +41,13 @@ public class CoasterRailType extends RailType {
 
     @Override
     public boolean isRail(World world, int x, int y, int z) {
-        return !getRails(world).findAtRails(x, y, z).isEmpty();
+        boolean isRail = !getRails(world).findAtRails(x, y, z).isEmpty();
+        TrackStatistics stats = this.plugin.getStatistics();
+        stats.isRailCalls.increment();
+        if (isRail) {
+            stats.isRailHits.increment();
+        }
+        return isRail;
     }
 
     @Override
@@ -144,7 +151,10 @@ public class CoasterRailType extends RailType {
     @Override
     public RailLogic getLogic(RailState state) {
         List<TrackRailsSection> rails = getRails(state.railBlock().getWorld()).findAtRails(state.railBlock());
+        TrackStatistics stats = this.plugin.getStatistics();
+        stats.getLogicCalls.increment();
         if (rails.size() >= 1) {
+            stats.getLogicHits.increment();
             TrackRailsSection section = rails.get(0);
             if (rails.size() >= 2) {
                 double minCost = section.calcCost(state);
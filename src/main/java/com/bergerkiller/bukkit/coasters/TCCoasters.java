@@ -1,12 +1,19 @@
 package com.bergerkiller.bukkit.coasters;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
@@ -19,7 +26,12 @@ import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.editor.PlayerEditState;
 import com.bergerkiller.bukkit.coasters.editor.TCCoastersDisplay;
+import com.bergerkiller.bukkit.coasters.particles.TrackParticleState;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
+import com.bergerkiller.bukkit.coasters.stats.TrackProfile;
+import com.bergerkiller.bukkit.coasters.stats.TrackStatistics;
 import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
+import com.bergerkiller.bukkit.coasters.tracks.TrackCoasterGenerator;
 import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
 import com.bergerkiller.bukkit.coasters.tracks.TrackWorld;
 import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
@@ -34,12 +46,26 @@ import com.bergerkiller.bukkit.tc.controller.components.RailPath;
 import com.bergerkiller.bukkit.tc.rails.type.RailType;
 
 public class TCCoasters extends JavaPlugin {
+    private static final int MAX_PROFILE_TICKS = 20 * 60 * 20;
+    private static final int MAX_GENERATED_NODES = 100000;
     private Task updateTask;
     private Task autosaveTask;
     private final TCCoastersListener listener = new TCCoastersListener(this);
     private final TCCoastersInteractionListener interactionListener = new TCCoastersInteractionListener(this);
     private final Map<Player, PlayerEditState> editStates = new HashMap<Player, PlayerEditState>();
+    private final TrackParticleState.Source nodeStateSource = new TrackParticleState.Source() {
+        @Override
+        public TrackParticleState getState(Player viewer, int nodeId) {
+            PlayerEditState state = editStates.get(viewer);
+            return (state != null && state.isEditing(nodeId)) ?
+                    TrackParticleState.SELECTED : TrackParticleState.DEFAULT;
+        }
+    };
     private final Map<World, CoasterWorldImpl> worlds = new HashMap<World, CoasterWorldImpl>();
+    private final BitSet nodeIds = new BitSet();
+    private final TrackStatistics statistics = new TrackStatistics();
+    private int particleSpawnBudget = 200;
+    private int particleDespawnBudget = 400;
 
     public void unloadWorld(World world) {
         CoasterWorldImpl coasterWorld = worlds.get(world);
@@ -74,6 +100,16 @@ public class TCCoasters extends JavaPlugin {
         return CommonUtil.unsafeCast(this.worlds.values());
     }
 
+    /**
+     * Gets the particle state source shared by the particles of all nodes, which are identified by node id.
+     * Nodes are displayed selected to players that have them selected.
+     * 
+     * @return node state source
+     */
+    public TrackParticleState.Source getNodeStateSource() {
+        return this.nodeStateSource;
+    }
+
     public PlayerEditState getEditState(Player player) {
         PlayerEditState state = editStates.get(player);
         if (state == null) {
@@ -100,6 +136,59 @@ public class TCCoasters extends JavaPlugin {
         return new FileConfiguration(new File(folder, player.getUniqueId().toString() + ".yml"));
     }
 
+    /**
+     * Gets the maximum number of particles spawned for a single viewer every tick.
+     * Particles beyond this budget are spawned in the ticks that follow, nearest first.
+     * 
+     * @return particle spawn budget
+     */
+    public int getParticleSpawnBudget() {
+        return this.particleSpawnBudget;
+    }
+
+    /**
+     * Gets the maximum number of particles despawned for a single viewer every tick
+     * 
+     * @return particle despawn budget
+     */
+    public int getParticleDespawnBudget() {
+        return this.particleDespawnBudget;
+    }
+
+    /**
+     * Gets the statistics of the work done every tick
+     * 
+     * @return statistics
+     */
+    public TrackStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Allocates a unique id for a new track node. The ids of removed nodes are re-used,
+     * keeping the ids small so they can be used as index into bitsets.
+     * 
+     * @return node id
+     */
+    public int allocateNodeId() {
+        int id = this.nodeIds.nextClearBit(0);
+        this.nodeIds.set(id);
+        return id;
+    }
+
+    /**
+     * Releases the id of a track node that was removed, after removing the node
+     * from the selection of all players.
+     * 
+     * @param node that was removed
+     */
+    public void releaseNodeId(TrackNode node) {
+        for (PlayerEditState state : this.editStates.values()) {
+            state.onNodeRemoved(node);
+        }
+        this.nodeIds.clear(node.getId());
+    }
+
     /**
      * Attempts to find the coaster by a given name
      * 
@@ -132,6 +221,14 @@ public class TCCoasters extends JavaPlugin {
 
     @Override
     public void onEnable() {
+        FileConfiguration config = new FileConfiguration(this);
+        config.load();
+        config.setHeader("particleSpawnBudget", "Maximum number of track particles spawned for a single player every tick");
+        this.particleSpawnBudget = Math.max(1, config.get("particleSpawnBudget", this.particleSpawnBudget));
+        config.setHeader("particleDespawnBudget", "Maximum number of track particles despawned for a single player every tick");
+        this.particleDespawnBudget = Math.max(1, config.get("particleDespawnBudget", this.particleDespawnBudget));
+        config.save();
+
         this.listener.enable();
         this.interactionListener.enable();
         this.updateTask = new Task(this) {
@@ -150,6 +247,8 @@ public class TCCoasters extends JavaPlugin {
                         state.update();
                     }
                 }
+
+                statistics.onTickEnd();
             }
         }.start(1, 1);
 
@@ -179,6 +278,9 @@ public class TCCoasters extends JavaPlugin {
         for (World world : Bukkit.getWorlds()) {
             unloadWorld(world);
         }
+
+        // Stop recording events so the flight recorder no longer references this plugin
+        TrackEventType.shutdown();
     }
 
     @Override
@@ -226,12 +328,98 @@ public class TCCoasters extends JavaPlugin {
         } else if (args.length > 0 && args[0].equals("build")) {
             sender.sendMessage("Rebuilding tracks");
             buildAll();
+        } else if (args.length > 0 && args[0].equals("generate")) {
+            if (!sender.hasPermission("train.coasters.generate")) {
+                sender.sendMessage("Sorry, no permission for this.");
+                return true;
+            }
+            long numNodesArg = (args.length > 1) ? parseLong(args[1], 0L) : 10000L;
+            long numCoastersArg = (args.length > 2) ? parseLong(args[2], 0L) : Math.max(1L, numNodesArg / 1000L);
+            if (numNodesArg <= 0L || numCoastersArg <= 0L) {
+                sender.sendMessage("Please specify a positive number of nodes and coasters: /tcc generate [nodes] [coasters] [seed]");
+                return true;
+            }
+            if (numNodesArg > MAX_GENERATED_NODES) {
+                sender.sendMessage("At most " + MAX_GENERATED_NODES + " track nodes can be generated at once");
+            }
+            int numNodes = (int) Math.min(numNodesArg, MAX_GENERATED_NODES);
+            TrackCoasterGenerator generator = new TrackCoasterGenerator(this.getCoasterWorld(p.getWorld()).getTracks(),
+                    (args.length > 3) ? parseLong(args[3], 0L) : 0L);
+            generator.setNumNodes(numNodes);
+            generator.setNumCoasters((int) Math.min(numCoastersArg, numNodes));
+            generator.setCenter(p.getLocation().toVector());
+            List<TrackCoaster> coasters = generator.generate();
+            sender.sendMessage("Generated " + numNodes + " track nodes in " + coasters.size() + " coasters");
+        } else if (args.length > 0 && args[0].equals("stats")) {
+            if (args.length > 1 && args[1].equals("off")) {
+                if (this.statistics.getProfile() != null) {
+                    sender.sendMessage("A profile is being recorded, use /tcc profile stop to stop it first");
+                } else {
+                    this.statistics.setEnabled(false);
+                    sender.sendMessage("Stopped collecting statistics");
+                }
+            } else if (!this.statistics.isEnabled()) {
+                this.statistics.setEnabled(true);
+                sender.sendMessage("Started collecting statistics, use /tcc stats again in a few seconds to view them");
+            } else {
+                this.statistics.setEnabled(true);
+                for (String line : this.statistics.getReport()) {
+                    sender.sendMessage(line);
+                }
+            }
+        } else if (args.length > 0 && args[0].equals("profile")) {
+            TrackProfile profile = this.statistics.getProfile();
+            if (args.length > 1 && args[1].equals("stop")) {
+                if (profile == null) {
+                    sender.sendMessage("No profile is being recorded");
+                } else {
+                    profile.stop();
+                    this.writeProfile(sender, profile);
+                }
+            } else if (args.length > 1) {
+                long ticks = Math.min(parseLong(args[1], 0L), MAX_PROFILE_TICKS);
+                if (ticks <= 0) {
+                    sender.sendMessage("Please specify the number of ticks to record: /tcc profile <ticks>");
+                } else {
+                    this.statistics.setProfile(new TrackProfile(this.statistics, (int) ticks));
+                    sender.sendMessage("Recording the last " + ticks + " ticks. Use /tcc profile to write them to disk, " +
+                            "or /tcc profile stop to also stop recording");
+                }
+            } else if (profile != null) {
+                this.writeProfile(sender, profile);
+            } else {
+                sender.sendMessage("Start recording using /tcc profile <ticks>");
+            }
         } else {
             sender.sendMessage("What did you want? Try /tcc give");
         }
         return true;
     }
 
+    // Writes the ticks recorded by a profile to a new CSV file in the profiles folder
+    private void writeProfile(CommandSender sender, TrackProfile profile) {
+        File folder = new File(this.getDataFolder(), "profiles");
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File file = new File(folder, "profile_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".csv");
+        try (FileWriter writer = new FileWriter(file)) {
+            profile.write(writer);
+            sender.sendMessage("Wrote " + profile.getTickCount() + " ticks to " + file.getPath());
+        } catch (IOException ex) {
+            this.getLogger().log(Level.SEVERE, "An I/O Error occurred while writing profile " + file.getName(), ex);
+            sender.sendMessage("Failed to write the profile: " + ex.getMessage());
+        }
+    }
+
+    private static long parseLong(String text, long def) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
     public void buildAll() {
         for (CoasterWorldAccess coasterWorld : this.getCoasterWorlds()) {
             coasterWorld.getRails().rebuild();
@@ -258,9 +446,12 @@ public class TCCoasters extends JavaPlugin {
 
         @Override
         public void run() {
+            TrackStatistics statistics = ((TCCoasters) this.getPlugin()).getStatistics();
+            long startTime = statistics.startTimer();
             for (CoasterWorldImpl coasterWorld : ((TCCoasters) this.getPlugin()).worlds.values()) {
                 coasterWorld.save(true);
             }
+            statistics.autosaveTime.recordTimeSince(startTime);
 
             Iterator<PlayerEditState> iter = ((TCCoasters) this.getPlugin()).editStates.values().iterator();
             while (iter.hasNext()) {
@@ -17,6 +17,8 @@ import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.editor.PlayerEditState;
+import com.bergerkiller.bukkit.coasters.stats.TrackEvent;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
 import com.bergerkiller.bukkit.common.Task;
 import com.bergerkiller.bukkit.common.bases.IntVector3;
 import com.bergerkiller.bukkit.common.events.PacketReceiveEvent;
@@ -193,7 +195,12 @@ public class TCCoastersInteractionListener implements PacketListener, Listener {
 
             // Check whether a particle is reasonably nearby
             // This acts as an extra safeguard against weird bugs happening elsewhere on the world
-            if (!state.getParticles().isParticleNearby(event.getPlayer())) {
+            TrackEvent lookupEvent = TrackEventType.PACKET_LOOKUP.begin();
+            boolean particleNearby = state.getParticles().isParticleNearby(event.getPlayer());
+            if (lookupEvent.isRecorded()) {
+                lookupEvent.set(0, event.getType().toString()).set(1, particleNearby).commit();
+            }
+            if (!particleNearby) {
                 return;
             }
 
@@ -215,8 +222,13 @@ public class TCCoastersInteractionListener implements PacketListener, Listener {
         }
 
         if (event.getType() == PacketType.IN_USE_ENTITY) {
+            TrackEvent lookupEvent = TrackEventType.PACKET_LOOKUP.begin();
             int entityId = event.getPacket().read(PacketType.IN_USE_ENTITY.clickedEntityId);
-            if (!state.getParticles().isParticle(event.getPlayer(), entityId)) {
+            boolean isParticle = state.getParticles().isParticle(event.getPlayer(), entityId);
+            if (lookupEvent.isRecorded()) {
+                lookupEvent.set(0, event.getType().toString()).set(1, isParticle).commit();
+            }
+            if (!isParticle) {
                 return; // Not one of our own entities
             }
 
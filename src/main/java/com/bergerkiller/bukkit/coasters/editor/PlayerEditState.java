@@ -1,9 +1,14 @@
 package com.bergerkiller.bukkit.coasters.editor;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -24,6 +29,7 @@ import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
 import com.bergerkiller.bukkit.common.config.FileConfiguration;
 import com.bergerkiller.bukkit.common.math.Matrix4x4;
 import com.bergerkiller.bukkit.common.utils.LogicUtil;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 
 /**
  * The track editing state of a single player.
@@ -33,9 +39,12 @@ import com.bergerkiller.bukkit.common.utils.LogicUtil;
 public class PlayerEditState implements CoasterWorldAccess {
     private static final int EDIT_AUTO_TIMEOUT = 5;
     private static final int EDIT_CANCEL_TIMEOUT = 8;
+    private static final int MAX_STATE_UPDATES_PER_TICK = 256;
     private final TCCoasters plugin;
     private final Player player;
     private final Set<TrackNode> editedNodes = new HashSet<TrackNode>();
+    private final BitSet editedNodeIds = new BitSet();
+    private final Set<TrackNode> pendingStateUpdates = new LinkedHashSet<TrackNode>();
     private CoasterWorldAccess cachedCoasterWorld = null;
     private TrackNode lastEdited = null;
     private long lastEditTime = System.currentTimeMillis();
@@ -59,6 +68,7 @@ public class PlayerEditState implements CoasterWorldAccess {
 
             this.editMode = config.get("mode", Mode.DISABLED);
             this.editedNodes.clear();
+            this.editedNodeIds.clear();
             List<String> editNodePositions = config.getList("editedNodes", String.class);
             if (editNodePositions != null && !editNodePositions.isEmpty()) {
                 for (String nodeStr : editNodePositions) {
@@ -72,6 +82,7 @@ public class PlayerEditState implements CoasterWorldAccess {
                             TrackNode node = getTracks().findNodeExact(new Vector(x, y, z));
                             if (node != null) {
                                 this.editedNodes.add(node);
+                                this.editedNodeIds.set(node.getId());
                             }
                         } catch (NumberFormatException ex) {}
                     }
@@ -90,8 +101,7 @@ public class PlayerEditState implements CoasterWorldAccess {
         config.set("mode", this.editMode);
         List<String> editedNodeNames = new ArrayList<String>(this.editedNodes.size());
         for (TrackNode node : this.editedNodes) {
-            Vector p = node.getPosition();
-            editedNodeNames.add(p.getX() + "_" + p.getY() + "_" + p.getZ());
+            editedNodeNames.add(node.getPositionX() + "_" + node.getPositionY() + "_" + node.getPositionZ());
         }
         config.set("editedNodes", editedNodeNames);
         config.save();
@@ -113,10 +123,11 @@ public class PlayerEditState implements CoasterWorldAccess {
         if (!this.editedNodes.isEmpty()) {
             ArrayList<TrackNode> oldNodes = new ArrayList<TrackNode>(this.editedNodes);
             this.editedNodes.clear();
+            this.editedNodeIds.clear();
             this.lastEdited = null;
             this.changed = true;
             for (TrackNode oldNode : oldNodes) {
-                oldNode.onStateUpdated(this.player);
+                this.scheduleStateUpdate(oldNode);
             }
         }
     }
@@ -165,7 +176,7 @@ public class PlayerEditState implements CoasterWorldAccess {
             this.editMode = mode;
             this.changed = true;
             for (TrackNode node : this.editedNodes) {
-                node.onStateUpdated(this.player);
+                this.scheduleStateUpdate(node);
             }
         }
     }
@@ -181,15 +192,88 @@ public class PlayerEditState implements CoasterWorldAccess {
 
     public void setEditing(TrackNode node, boolean editing) {
         if (LogicUtil.addOrRemove(this.editedNodes, node, editing)) {
-            node.onStateUpdated(this.player);
+            this.editedNodeIds.set(node.getId(), editing);
+            this.scheduleStateUpdate(node);
             this.lastEdited = node;
             this.lastEditTime = System.currentTimeMillis();
             this.changed = true;
         }
     }
 
+    /**
+     * Sets the editing state of many nodes at once. Only the nodes whose state
+     * changed are updated, and only those with particles near the player send packets.
+     * These are sent a limited number at a time every tick.
+     * 
+     * @param nodes to change
+     * @param editing whether to select (true) or de-select (false) the nodes
+     */
+    public void setEditing(Collection<TrackNode> nodes, boolean editing) {
+        List<TrackNode> changedNodes = new ArrayList<TrackNode>(nodes.size());
+        for (TrackNode node : nodes) {
+            if (this.editedNodeIds.get(node.getId()) != editing) {
+                this.editedNodeIds.set(node.getId(), editing);
+                LogicUtil.addOrRemove(this.editedNodes, node, editing);
+                changedNodes.add(node);
+            }
+        }
+        if (!changedNodes.isEmpty()) {
+            for (TrackNode node : changedNodes) {
+                this.scheduleStateUpdate(node);
+            }
+            this.lastEdited = changedNodes.get(changedNodes.size() - 1);
+            this.lastEditTime = System.currentTimeMillis();
+            this.changed = true;
+        }
+    }
+
     public boolean isEditing(TrackNode node) {
-        return this.editedNodes.contains(node);
+        return this.editedNodeIds.get(node.getId());
+    }
+
+    /**
+     * Checks whether the node with a particular id is selected
+     * 
+     * @param nodeId id of the node, see {@link TrackNode#getId()}
+     * @return True if the node is selected
+     */
+    public boolean isEditing(int nodeId) {
+        return this.editedNodeIds.get(nodeId);
+    }
+
+    // Schedules updating the appearance of a node's particles after its selection changed
+    private void scheduleStateUpdate(TrackNode node) {
+        if (node.isParticlesActive()) {
+            this.pendingStateUpdates.add(node);
+        }
+    }
+
+    // Updates the appearance of the nodes whose selection changed, a limited number every tick
+    private void sendStateUpdates() {
+        Iterator<TrackNode> iter = this.pendingStateUpdates.iterator();
+        for (int n = 0; n < MAX_STATE_UPDATES_PER_TICK && iter.hasNext(); n++) {
+            TrackNode node = iter.next();
+            iter.remove();
+            if (node.isParticlesActive()) {
+                node.onStateUpdated(this.player);
+            }
+        }
+    }
+
+    /**
+     * Called when a node is removed, to remove it from the selection
+     * 
+     * @param node that was removed
+     */
+    public void onNodeRemoved(TrackNode node) {
+        if (this.editedNodes.remove(node)) {
+            this.editedNodeIds.clear(node.getId());
+            this.changed = true;
+        }
+        this.pendingStateUpdates.remove(node);
+        if (this.lastEdited == node) {
+            this.lastEdited = null;
+        }
     }
 
     public boolean onLeftClick() {
@@ -254,6 +338,7 @@ public class PlayerEditState implements CoasterWorldAccess {
         // Switch junction when clicking on one
         if (bestJunction != null) {
             bestNode.switchJunction(bestJunction);
+            this.scheduleRefresh(bestNode);
             return true;
         }
 
@@ -291,18 +376,26 @@ public class PlayerEditState implements CoasterWorldAccess {
     public void floodSelect(TrackNode startNode) {
         this.clearEditedNodes();
 
-        List<TrackNode> pending = new ArrayList<TrackNode>(2);
+        // Collect all connected nodes first, then select them all at once
+        BitSet visited = new BitSet();
+        List<TrackNode> selected = new ArrayList<TrackNode>();
+        ArrayDeque<TrackNode> pending = new ArrayDeque<TrackNode>();
+        visited.set(startNode.getId());
         pending.add(startNode);
 
-        while (!pending.isEmpty()) {
-            TrackNode node = pending.remove(0);
-            setEditing(node, true);
-            for (TrackNode neighbour : node.getNeighbours()) {
-                if (!isEditing(neighbour)) {
+        TrackNode node;
+        while ((node = pending.poll()) != null) {
+            selected.add(node);
+            for (TrackConnection connection : node.getConnections()) {
+                TrackNode neighbour = connection.getOtherNode(node);
+                if (!visited.get(neighbour.getId())) {
+                    visited.set(neighbour.getId());
                     pending.add(neighbour);
                 }
             }
         }
+
+        this.setEditing(selected, true);
     }
 
     /**
@@ -318,9 +411,7 @@ public class PlayerEditState implements CoasterWorldAccess {
 
         // Now do stuff with the found path, if found
         if (bestPath != null) {
-            for (TrackNode node : bestPath.path) {
-                this.setEditing(node, true);
-            }
+            this.setEditing(bestPath.path, true);
         }
     }
 
@@ -353,6 +444,7 @@ public class PlayerEditState implements CoasterWorldAccess {
                 this.setMode(this.afterEditMode);
             }
         }
+        this.sendStateUpdates();
     }
 
     private void updateEditing() {
@@ -383,8 +475,10 @@ public class PlayerEditState implements CoasterWorldAccess {
             Collections.sort(nearby, new Comparator<TrackNode>() {
                 @Override
                 public int compare(TrackNode o1, TrackNode o2) {
-                    return Double.compare(o1.getPosition().distanceSquared(pos),
-                                          o2.getPosition().distanceSquared(pos));
+                    return Double.compare(MathUtil.distanceSquared(o1.getPositionX(), o1.getPositionY(), o1.getPositionZ(),
+                                                                   pos.getX(), pos.getY(), pos.getZ()),
+                                          MathUtil.distanceSquared(o2.getPositionX(), o2.getPositionY(), o2.getPositionZ(),
+                                                                   pos.getX(), pos.getY(), pos.getZ()));
                 }
             });
 
@@ -407,6 +501,7 @@ public class PlayerEditState implements CoasterWorldAccess {
                         tracks.connect(droppedNode, connected);
                     }
                 }
+                this.scheduleRefresh(droppedNode);
             }
         }
     }
@@ -425,6 +520,8 @@ public class PlayerEditState implements CoasterWorldAccess {
             for (TrackNode neigh : node.getNeighbours()) {
                 if (toDelete.contains(neigh)) {
                     node.getTracks().disconnect(node, neigh);
+                    this.scheduleRefresh(node);
+                    this.scheduleRefresh(neigh);
                     disconnectedNodes = true;
                 }
             }
@@ -454,6 +551,9 @@ public class PlayerEditState implements CoasterWorldAccess {
         for (TrackNode node : toDelete) {
             node.remove();
         }
+        for (TrackNode node : this.getEditedNodes()) {
+            this.scheduleRefresh(node);
+        }
     }
 
     /**
@@ -474,7 +574,7 @@ public class PlayerEditState implements CoasterWorldAccess {
             if (lookingAt != null) {
                 this.clearEditedNodes();
                 this.setEditing(lookingAt, true);
-                pos = lookingAt.getPosition().clone();
+                pos = lookingAt.getPosition();
                 dragAfterCreate = true;
             }
         }
@@ -520,6 +620,7 @@ public class PlayerEditState implements CoasterWorldAccess {
         } else {
             newNode = tracks.createNew(pos).getNodes().get(0);
         }
+        this.scheduleRefresh(newNode);
         clearEditedNodes();
         setEditing(newNode, true);
     }
@@ -556,19 +657,32 @@ public class PlayerEditState implements CoasterWorldAccess {
         if (this.getMode() == Mode.ORIENTATION) {
             changes.transformPoint(this.editRotInfo);
             for (TrackNode node : this.getEditedNodes()) {
+                Vector old = node.getOrientation();
                 node.setOrientation(this.editRotInfo.clone().subtract(node.getPosition()));
+                if (!old.equals(node.getOrientation())) {
+                    this.scheduleRefresh(node);
+                }
             }
         } else {
             for (TrackNode node : this.getEditedNodes()) {
-                Vector v = node.getPosition().clone();
+                Vector old = node.getPosition();
+                Vector v = old.clone();
                 changes.transformPoint(v);
                 node.setPosition(v);
+                if (!old.equals(node.getPosition())) {
+                    this.scheduleRefresh(node);
+                }
             }
         }
 
         this.editStartPos = currPos;
     }
 
+    // Refreshes a node this player changed, noting the player as the cause in the profile
+    private void scheduleRefresh(TrackNode node) {
+        this.getTracks().scheduleNodeRefresh(node, this.player);
+    }
+
     public static enum Mode {
         DISABLED("Disabled (hidden)", 0, 1),
         CREATE("Create Track", 10, 3),
@@ -154,7 +154,7 @@ public class TCCoastersDisplay extends MapDisplay {
 
     private void alignPosition(char axis, double value) {
         for (TrackNode node : getState().getEditedNodes()) {
-            Vector v = node.getPosition().clone();
+            Vector v = node.getPosition();
             if (axis == 'x') {
                 v.setX(v.getBlockX() + value);
             } else if (axis == 'y') {
@@ -1,11 +1,16 @@
 package com.bergerkiller.bukkit.coasters.particles;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
-import com.bergerkiller.bukkit.common.collections.ImmutablePlayerSet;
-import com.bergerkiller.bukkit.common.utils.PacketUtil;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
+import com.bergerkiller.bukkit.common.protocol.CommonPacket;
+import com.bergerkiller.bukkit.common.protocol.PacketType;
 import com.bergerkiller.generated.net.minecraft.server.PacketHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
 
 /**
  * A single particle of a track that is rendered (or not) for a player.
@@ -14,8 +19,21 @@ import com.bergerkiller.generated.net.minecraft.server.PacketHandle;
  */
 public abstract class TrackParticle {
     private final TrackParticleWorld world;
-    private ImmutablePlayerSet viewers = ImmutablePlayerSet.EMPTY;
+    /**
+     * Distance from a viewer within which a particle is considered nearby
+     */
+    public static final double NEARBY_DISTANCE = 5.0;
+    protected static final int[] NO_ENTITY_IDS = new int[0];
+    private static final AtomicLongArray NO_VIEWER_BITS = new AtomicLongArray(0);
+    // Bits are only changed on the main thread, and read from the network thread as well.
+    // The array is only replaced when the viewer slots of the world no longer fit in it.
+    private volatile AtomicLongArray viewerBits = NO_VIEWER_BITS;
     private TrackParticleState.Source stateSource = TrackParticleState.SOURCE_NONE;
+    private int stateSourceId = -1;
+    protected IntVector3 cell = null;
+    protected boolean visibilityChanged = false;
+    protected boolean appearanceChanged = false;
+    protected int[] entityIds = NO_ENTITY_IDS;
 
     public TrackParticle(TrackParticleWorld world) {
         this.world = world;
@@ -36,37 +54,228 @@ public abstract class TrackParticle {
      * @param viewerPosition of the viewer, null to hide forcibly
      */
     public final void updateFor(Player viewer, Vector viewerPosition) {
-        boolean visible = (viewer.getWorld() == this.world.getWorld()) && viewerPosition != null && isVisible(viewerPosition);
-        ImmutablePlayerSet new_viewers = this.viewers.addOrRemove(viewer, visible);
-        if (this.viewers != new_viewers) {
-            this.viewers = new_viewers;
+        int slot = this.world.getViewerSlot(viewer);
+        boolean visible = (slot != -1) && (viewer.getWorld() == this.world.getWorld()) && viewerPosition != null && isVisible(slot, viewerPosition);
+        if (visible != this.isViewerSlot(slot)) {
             if (visible) {
+                this.setViewerSlot(slot);
                 makeVisibleFor(viewer);
             } else {
+                this.clearViewerSlot(slot);
                 makeHiddenFor(viewer);
             }
         }
     }
 
-    public ImmutablePlayerSet getViewers() {
-        return this.viewers;
+    /**
+     * Checks whether this particle is currently displayed to a viewer.
+     * This method is safe to call from the network thread.
+     * 
+     * @param viewer
+     * @return True if the viewer can see this particle
+     */
+    public final boolean isViewer(Player viewer) {
+        return this.isViewerSlot(this.world.getViewerSlot(viewer));
+    }
+
+    /**
+     * Checks whether this particle is currently displayed to the viewer with the given slot
+     * 
+     * @param slot of the viewer, see {@link TrackParticleWorld#getViewerSlot(Player)}
+     * @return True if the viewer can see this particle
+     */
+    protected final boolean isViewerSlot(int slot) {
+        if (slot < 0) {
+            return false;
+        }
+        AtomicLongArray bits = this.viewerBits;
+        int index = slot >> 6;
+        return index < bits.length() && (bits.get(index) & (1L << slot)) != 0L;
+    }
+
+    /**
+     * Gets the slot of the first viewer of this particle at or after a slot.
+     * Used to iterate all viewers without allocating:
+     * <pre>
+     * for (int slot = nextViewerSlot(0); slot != -1; slot = nextViewerSlot(slot + 1)) {
+     *     Player viewer = getWorld().getViewer(slot);
+     * }
+     * </pre>
+     * 
+     * @param fromSlot slot to start looking from (inclusive)
+     * @return next viewer slot, -1 if there are no more viewers
+     */
+    protected final int nextViewerSlot(int fromSlot) {
+        AtomicLongArray bits = this.viewerBits;
+        int index = fromSlot >> 6;
+        if (index >= bits.length()) {
+            return -1;
+        }
+        long word = bits.get(index) & (-1L << fromSlot);
+        while (word == 0L) {
+            if (++index == bits.length()) {
+                return -1;
+            }
+            word = bits.get(index);
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private void setViewerSlot(int slot) {
+        int index = slot >> 6;
+        AtomicLongArray bits = this.viewerBits;
+        if (index >= bits.length()) {
+            // Grow to fit all viewer slots of the world, so this rarely happens again
+            AtomicLongArray grown = new AtomicLongArray(Math.max(index + 1, this.world.getViewerSlotWords()));
+            for (int i = 0; i < bits.length(); i++) {
+                grown.set(i, bits.get(i));
+            }
+            this.viewerBits = bits = grown;
+        }
+        bits.set(index, bits.get(index) | (1L << slot));
+    }
+
+    /**
+     * Marks a viewer as no longer seeing this particle, without sending any packets
+     * 
+     * @param slot of the viewer
+     */
+    protected final void clearViewerSlot(int slot) {
+        AtomicLongArray bits = this.viewerBits;
+        int index = slot >> 6;
+        if (index < bits.length()) {
+            bits.set(index, bits.get(index) & ~(1L << slot));
+        }
+    }
+
+    /**
+     * Allocates a unique entity id for use by this particle. Ids of removed particles
+     * are re-used. The id is registered in the world, so that packets referring to it
+     * can be mapped back to this particle.
+     * 
+     * @return new entity id
+     */
+    protected final int allocateEntityId() {
+        int entityId = this.world.allocateEntityId();
+        this.entityIds = Arrays.copyOf(this.entityIds, this.entityIds.length + 1);
+        this.entityIds[this.entityIds.length - 1] = entityId;
+        this.world.registerEntityId(this, entityId);
+        return entityId;
+    }
+
+    /**
+     * Must be called by implementations after the position of the particle changes,
+     * so that the particle is moved to the right cell of the world's spatial grid.
+     */
+    protected final void updateCell() {
+        if (this.cell != null) {
+            this.world.updateCell(this);
+        }
+    }
+
+    /**
+     * Must be called by implementations when whether the particle is visible to viewers changes,
+     * without its position changing, so that its visibility is updated for all viewers.
+     */
+    protected final void scheduleUpdateVisibility() {
+        this.world.markVisibilityChanged(this);
+    }
+
+    /**
+     * Must be called by implementations when the appearance of the particle changes,
+     * so that {@link #updateAppearance()} is called at the end of the tick.
+     */
+    protected final void scheduleUpdateAppearance() {
+        this.world.scheduleUpdateAppearance(this);
     }
 
     public void makeHiddenForAll() {
-        for (Player viewer : this.viewers) {
-            this.makeHiddenFor(viewer);
+        for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+            this.makeHiddenFor(this.world.getViewer(slot));
+        }
+        AtomicLongArray bits = this.viewerBits;
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0L);
         }
-        this.viewers = this.viewers.clear();
     }
 
     public void broadcastPacket(PacketHandle packet) {
-        for (Player viewer : this.viewers) {
-            PacketUtil.sendPacket(viewer, packet);
+        for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+            this.sendPacket(this.world.getViewer(slot), packet);
+        }
+    }
+
+    public void broadcastPacket(CommonPacket packet) {
+        for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+            this.sendPacket(this.world.getViewer(slot), packet);
+        }
+    }
+
+    /**
+     * Moves an entity of this particle to a new position for all viewers.
+     * A relative move packet is sent when the change is small enough, otherwise
+     * the entity is teleported. Nothing is sent when the position did not change.
+     * 
+     * @param entityId of the entity to move
+     * @param position of the entity as known by the viewers, is updated
+     * @param x new x-coordinate
+     * @param y new y-coordinate
+     * @param z new z-coordinate
+     */
+    protected final void broadcastMove(int entityId, TrackParticleEntityPosition position, double x, double y, double z) {
+        long ux = TrackParticleEntityPosition.toUnits(x);
+        long uy = TrackParticleEntityPosition.toUnits(y);
+        long uz = TrackParticleEntityPosition.toUnits(z);
+        long dx = ux - position.getUnitsX();
+        long dy = uy - position.getUnitsY();
+        long dz = uz - position.getUnitsZ();
+        if (dx == 0 && dy == 0 && dz == 0) {
+            return;
+        }
+
+        position.setUnits(ux, uy, uz);
+        if (TrackParticleEntityPosition.isRelativeMove(dx, dy, dz)) {
+            this.broadcastPacket(PacketType.OUT_ENTITY_MOVE.newInstance(entityId,
+                    (double) dx / TrackParticleEntityPosition.UNITS_PER_BLOCK,
+                    (double) dy / TrackParticleEntityPosition.UNITS_PER_BLOCK,
+                    (double) dz / TrackParticleEntityPosition.UNITS_PER_BLOCK,
+                    false));
+        } else {
+            this.broadcastPacket(PacketPlayOutEntityTeleportHandle.createNew(entityId,
+                    position.getX(), position.getY(), position.getZ(),
+                    0.0f, 0.0f, false));
         }
     }
 
-    public final void setStateSource(TrackParticleState.Source stateSource) {
+    /**
+     * Queues a packet to be sent to a viewer at the end of the tick
+     * 
+     * @param viewer
+     * @param packet
+     */
+    public void sendPacket(Player viewer, PacketHandle packet) {
+        this.world.getPacketQueue(viewer).add(packet);
+    }
+
+    /**
+     * Queues a packet to be sent to a viewer at the end of the tick
+     * 
+     * @param viewer
+     * @param packet
+     */
+    public void sendPacket(Player viewer, CommonPacket packet) {
+        this.world.getPacketQueue(viewer).add(packet);
+    }
+
+    /**
+     * Sets the source of the state of this particle
+     * 
+     * @param stateSource
+     * @param id passed to the source to identify this particle
+     */
+    public final void setStateSource(TrackParticleState.Source stateSource, int id) {
         this.stateSource = stateSource;
+        this.stateSourceId = id;
     }
 
     public final TrackParticleState.Source getStateSource() {
@@ -74,7 +283,7 @@ public abstract class TrackParticle {
     }
 
     public final TrackParticleState getState(Player viewer) {
-        return this.stateSource.getState(viewer);
+        return this.stateSource.getState(viewer, this.stateSourceId);
     }
 
     /**
@@ -83,19 +292,45 @@ public abstract class TrackParticle {
     public void onStateUpdated(Player viewer) {
     }
 
-    public final boolean isVisible(Vector viewerPosition) {
-        double d = getViewDistance();
-        return distanceSquared(viewerPosition) <= (d * d);
+    /**
+     * Checks whether this particle should be displayed to a viewer at a position
+     * 
+     * @param viewerPosition
+     * @return True if visible
+     */
+    public boolean isVisible(Vector viewerPosition) {
+        double max = getViewDistance();
+        return distanceSquared(viewerPosition) <= (max * max);
+    }
+
+    /**
+     * Checks whether this particle should be displayed to the viewer with the given slot.
+     * Implementations can override this to cache information per viewer.
+     * 
+     * @param slot of the viewer, see {@link TrackParticleWorld#getViewerSlot(Player)}
+     * @param viewerPosition
+     * @return True if visible
+     */
+    public boolean isVisible(int slot, Vector viewerPosition) {
+        return isVisible(viewerPosition);
     }
 
     public final boolean isNearby(Vector viewerPosition) {
-        return distanceSquared(viewerPosition) <= (5.0 * 5.0);
+        return distanceSquared(viewerPosition) <= (NEARBY_DISTANCE * NEARBY_DISTANCE);
     }
 
+    /**
+     * Gets the position used to store this particle in the spatial grid of the world.
+     * All points of the particle used by {@link #distanceSquared(Vector)} should be within
+     * {@link TrackParticleWorld#CELL_SIZE} blocks of this position.
+     * 
+     * @return cell position
+     */
+    public abstract Vector getCellPosition();
+
     public abstract double distanceSquared(Vector viewerPosition);
     public abstract double getViewDistance();
     public abstract void makeVisibleFor(Player viewer);
     public abstract void makeHiddenFor(Player viewer);
     public abstract void updateAppearance();
-    public abstract boolean usesEntityId(int entityId);
 }
@@ -1,5 +1,6 @@
 package com.bergerkiller.bukkit.coasters.particles;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.bukkit.entity.Player;
@@ -8,15 +9,12 @@ import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.common.math.Quaternion;
 import com.bergerkiller.bukkit.common.protocol.PacketType;
-import com.bergerkiller.bukkit.common.utils.EntityUtil;
-import com.bergerkiller.bukkit.common.utils.PacketUtil;
 import com.bergerkiller.bukkit.common.wrappers.DataWatcher;
 import com.bergerkiller.bukkit.tc.Util;
 import com.bergerkiller.generated.net.minecraft.server.EntityArmorStandHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityEquipmentHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityMetadataHandle;
-import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityHandle;
 
 /**
@@ -26,13 +24,21 @@ import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityH
  */
 public class TrackParticleArrow extends TrackParticle {
     private static final double VIEW_RADIUS = 64.0;
+    private static final double POSE_CHANGE_THRESHOLD = 0.25;
     private final ProtocolPosition prot = new ProtocolPosition();
+    private final TrackParticleEntityPosition protPosition = new TrackParticleEntityPosition();
+    private Vector protRotation = null;
     private TrackParticleItemType itemType = TrackParticleItemType.LEVER;
     private Vector position;
     private Quaternion orientation;
     private boolean positionChanged = false;
+    private boolean poseChangePending = false;
     private boolean itemChanged = false;
     private int entityId = -1;
+    private UUID entityUUID = null;
+    private PacketPlayOutSpawnEntityHandle spawnPacket = null;
+    private PacketPlayOutEntityMetadataHandle spawnMetaPacket = null;
+    private final PacketPlayOutEntityEquipmentHandle[] equipPackets = new PacketPlayOutEntityEquipmentHandle[TrackParticleState.values().length];
 
     protected TrackParticleArrow(TrackParticleWorld world, Vector position, Quaternion orientation) {
         super(world);
@@ -44,6 +50,8 @@ public class TrackParticleArrow extends TrackParticle {
         if (!position.equals(this.position)) {
             this.position = position.clone();
             this.positionChanged = true;
+            this.scheduleUpdateAppearance();
+            this.updateCell();
         }
     }
 
@@ -55,6 +63,7 @@ public class TrackParticleArrow extends TrackParticle {
         if (!orientation.equals(this.orientation)) {
             this.orientation = orientation.clone();
             this.positionChanged = true;
+            this.scheduleUpdateAppearance();
         }
     }
 
@@ -62,9 +71,16 @@ public class TrackParticleArrow extends TrackParticle {
         if (!this.itemType.equals(itemType)) {
             this.itemType = itemType;
             this.itemChanged = true;
+            this.scheduleUpdateAppearance();
+            Arrays.fill(this.equipPackets, null);
         }
     }
 
+    @Override
+    public Vector getCellPosition() {
+        return this.position;
+    }
+
     @Override
     public double distanceSquared(Vector viewerPosition) {
         return this.position.distanceSquared(viewerPosition);
@@ -80,28 +96,37 @@ public class TrackParticleArrow extends TrackParticle {
         if (this.positionChanged) {
             this.positionChanged = false;
 
-            if (this.entityId != -1) {
+            if (this.entityId != -1 && this.protPosition.isInitialized()) {
                 this.prot.calculate(this.position, this.orientation);
-
-                PacketPlayOutEntityTeleportHandle tpPacket = PacketPlayOutEntityTeleportHandle.createNew(
-                        this.entityId,
-                        this.prot.posX,  this.prot.posY,  this.prot.posZ,
-                        0.0f, 0.0f, false);
-                this.broadcastPacket(tpPacket);
-
-                DataWatcher metadata = new DataWatcher();
-                metadata.set(EntityArmorStandHandle.DATA_POSE_ARM_RIGHT, prot.rotation);
-                PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-                this.broadcastPacket(metaPacket);
+                this.broadcastMove(this.entityId, this.protPosition, this.prot.posX, this.prot.posY, this.prot.posZ);
+
+                // Only send the pose when it changed noticeably since it was last sent, as this is a relatively large packet
+                // Smaller changes are sent once the arrow stops changing, so viewers always end up seeing the final pose
+                if (isPoseChanged(this.protRotation, this.prot.rotation)) {
+                    this.broadcastPose(this.prot.rotation);
+                } else if (!this.protRotation.equals(this.prot.rotation)) {
+                    this.poseChangePending = true;
+                    this.scheduleUpdateAppearance();
+                } else {
+                    this.poseChangePending = false;
+                }
+
+                this.invalidateSpawnPackets();
+            }
+        } else if (this.poseChangePending) {
+            // Did not change since the previous tick, send the exact pose
+            this.poseChangePending = false;
+            if (this.entityId != -1 && this.protPosition.isInitialized()) {
+                this.broadcastPose(this.prot.rotation);
+                this.invalidateSpawnPackets();
             }
         }
         if (this.itemChanged) {
             this.itemChanged = false;
 
-            for (Player viewer : this.getViewers()) {
-                PacketPlayOutEntityEquipmentHandle equipPacket = PacketPlayOutEntityEquipmentHandle.createNew(
-                        this.entityId, EquipmentSlot.HAND, this.itemType.getItem(this.getState(viewer)));
-                PacketUtil.sendPacket(viewer, equipPacket);
+            for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+                Player viewer = this.getWorld().getViewer(slot);
+                this.sendPacket(viewer, this.getEquipPacket(this.getState(viewer)));
             }
         }
     }
@@ -110,51 +135,85 @@ public class TrackParticleArrow extends TrackParticle {
     public void onStateUpdated(Player viewer) {
         super.onStateUpdated(viewer);
 
-        PacketPlayOutEntityEquipmentHandle equipPacket = PacketPlayOutEntityEquipmentHandle.createNew(
-                this.entityId, EquipmentSlot.HAND, this.itemType.getItem(this.getState(viewer)));
-        PacketUtil.sendPacket(viewer, equipPacket);
+        if (this.isViewer(viewer)) {
+            this.sendPacket(viewer, this.getEquipPacket(this.getState(viewer)));
+        }
     }
 
     @Override
     public void makeHiddenFor(Player viewer) {
         if (this.entityId != -1) {
-            PacketUtil.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
+            this.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
         }
     }
 
     @Override
     public void makeVisibleFor(Player viewer) {
-        if (this.entityId == -1) {
-            this.entityId = EntityUtil.getUniqueEntityId();
+        if (this.spawnPacket == null) {
+            if (this.entityId == -1) {
+                this.entityId = this.allocateEntityId();
+                this.entityUUID = UUID.randomUUID();
+            }
+
+            // Spawn at the position and pose known by the other viewers, so that later moves apply to all of them
+            if (!this.protPosition.isInitialized()) {
+                this.prot.calculate(this.position, this.orientation);
+                this.protPosition.set(this.prot.posX, this.prot.posY, this.prot.posZ);
+                this.protRotation = this.prot.rotation;
+            }
+
+            this.spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
+            this.spawnPacket.setEntityId(this.entityId);
+            this.spawnPacket.setEntityUUID(this.entityUUID);
+            this.spawnPacket.setEntityTypeId(78);
+            this.spawnPacket.setPosX(this.protPosition.getX());
+            this.spawnPacket.setPosY(this.protPosition.getY());
+            this.spawnPacket.setPosZ(this.protPosition.getZ());
+
+            DataWatcher metadata = new DataWatcher();
+            metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
+            metadata.set(EntityHandle.DATA_FLAGS, (byte) (EntityHandle.DATA_FLAG_FLYING | EntityHandle.DATA_FLAG_INVISIBLE));
+            metadata.set(EntityArmorStandHandle.DATA_ARMORSTAND_FLAGS, (byte) EntityArmorStandHandle.DATA_FLAG_HAS_ARMS);
+            metadata.set(EntityArmorStandHandle.DATA_POSE_ARM_RIGHT, this.protRotation);
+            this.spawnMetaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
         }
 
-        prot.calculate(this.position, this.orientation);
+        this.sendPacket(viewer, this.spawnPacket);
+        this.sendPacket(viewer, this.spawnMetaPacket);
+        this.sendPacket(viewer, this.getEquipPacket(this.getState(viewer)));
+    }
 
-        PacketPlayOutSpawnEntityHandle spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
-        spawnPacket.setEntityId(this.entityId);
-        spawnPacket.setEntityUUID(UUID.randomUUID());
-        spawnPacket.setEntityTypeId(78);
-        spawnPacket.setPosX(prot.posX);
-        spawnPacket.setPosY(prot.posY);
-        spawnPacket.setPosZ(prot.posZ);
-        PacketUtil.sendPacket(viewer, spawnPacket);
+    private void broadcastPose(Vector pose) {
+        this.protRotation = pose;
+        this.poseChangePending = false;
 
         DataWatcher metadata = new DataWatcher();
-        metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
-        metadata.set(EntityHandle.DATA_FLAGS, (byte) (EntityHandle.DATA_FLAG_FLYING | EntityHandle.DATA_FLAG_INVISIBLE));
-        metadata.set(EntityArmorStandHandle.DATA_ARMORSTAND_FLAGS, (byte) EntityArmorStandHandle.DATA_FLAG_HAS_ARMS);
-        metadata.set(EntityArmorStandHandle.DATA_POSE_ARM_RIGHT, prot.rotation);
+        metadata.set(EntityArmorStandHandle.DATA_POSE_ARM_RIGHT, pose);
         PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-        PacketUtil.sendPacket(viewer, metaPacket);
+        this.broadcastPacket(metaPacket);
+    }
 
-        PacketPlayOutEntityEquipmentHandle equipPacket = PacketPlayOutEntityEquipmentHandle.createNew(
-                this.entityId, EquipmentSlot.HAND, this.itemType.getItem(this.getState(viewer)));
-        PacketUtil.sendPacket(viewer, equipPacket);
+    // The spawn packets are shared by all viewers, and rebuilt after the position or orientation changes
+    private void invalidateSpawnPackets() {
+        this.spawnPacket = null;
+        this.spawnMetaPacket = null;
     }
 
-    @Override
-    public boolean usesEntityId(int entityId) {
-        return this.entityId == entityId;
+    private static boolean isPoseChanged(Vector oldPose, Vector newPose) {
+        return Math.abs(oldPose.getX() - newPose.getX()) > POSE_CHANGE_THRESHOLD ||
+               Math.abs(oldPose.getY() - newPose.getY()) > POSE_CHANGE_THRESHOLD ||
+               Math.abs(oldPose.getZ() - newPose.getZ()) > POSE_CHANGE_THRESHOLD;
+    }
+
+    // The equipment packets are shared by all viewers with the same state, and rebuilt after the item changes
+    private PacketPlayOutEntityEquipmentHandle getEquipPacket(TrackParticleState state) {
+        PacketPlayOutEntityEquipmentHandle equipPacket = this.equipPackets[state.ordinal()];
+        if (equipPacket == null) {
+            equipPacket = PacketPlayOutEntityEquipmentHandle.createNew(
+                    this.entityId, EquipmentSlot.HAND, this.itemType.getItem(state));
+            this.equipPackets[state.ordinal()] = equipPacket;
+        }
+        return equipPacket;
     }
 
     private static class ProtocolPosition {
@@ -0,0 +1,104 @@
+package com.bergerkiller.bukkit.coasters.particles;
+
+/**
+ * The position of a particle entity as it is known by the viewers of the particle.
+ * Positions are stored in the fixed-point units of 1/4096th of a block used by the protocol,
+ * so that changes can be sent using relative move packets without accumulating errors.
+ */
+public class TrackParticleEntityPosition {
+    /**
+     * Number of protocol units in a single block
+     */
+    public static final double UNITS_PER_BLOCK = 4096.0;
+    private long x, y, z;
+    private boolean initialized = false;
+
+    /**
+     * Gets whether this position has been set, which is the case once the entity was spawned
+     * 
+     * @return True if initialized
+     */
+    public boolean isInitialized() {
+        return this.initialized;
+    }
+
+    public double getX() {
+        return (double) this.x / UNITS_PER_BLOCK;
+    }
+
+    public double getY() {
+        return (double) this.y / UNITS_PER_BLOCK;
+    }
+
+    public double getZ() {
+        return (double) this.z / UNITS_PER_BLOCK;
+    }
+
+    public long getUnitsX() {
+        return this.x;
+    }
+
+    public long getUnitsY() {
+        return this.y;
+    }
+
+    public long getUnitsZ() {
+        return this.z;
+    }
+
+    /**
+     * Sets the position, rounded to protocol units
+     * 
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void set(double x, double y, double z) {
+        this.setUnits(toUnits(x), toUnits(y), toUnits(z));
+    }
+
+    /**
+     * Sets the position in protocol units
+     * 
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void setUnits(long x, long y, long z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.initialized = true;
+    }
+
+    /**
+     * Resets this position, after which it must be set again before use
+     */
+    public void reset() {
+        this.initialized = false;
+    }
+
+    /**
+     * Rounds a block coordinate to protocol units
+     * 
+     * @param value
+     * @return value in protocol units
+     */
+    public static long toUnits(double value) {
+        return Math.round(value * UNITS_PER_BLOCK);
+    }
+
+    /**
+     * Checks whether a change in position, in protocol units, can be sent using a relative move packet
+     * 
+     * @param dx
+     * @param dy
+     * @param dz
+     * @return True if a relative move can be used
+     */
+    public static boolean isRelativeMove(long dx, long dy, long dz) {
+        return dx >= Short.MIN_VALUE && dx <= Short.MAX_VALUE &&
+               dy >= Short.MIN_VALUE && dy <= Short.MAX_VALUE &&
+               dz >= Short.MIN_VALUE && dz <= Short.MAX_VALUE;
+    }
+}
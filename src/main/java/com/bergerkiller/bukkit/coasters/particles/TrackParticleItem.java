@@ -1,18 +1,16 @@
 package com.bergerkiller.bukkit.coasters.particles;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.common.protocol.PacketType;
-import com.bergerkiller.bukkit.common.utils.EntityUtil;
-import com.bergerkiller.bukkit.common.utils.PacketUtil;
 import com.bergerkiller.bukkit.common.wrappers.DataWatcher;
 import com.bergerkiller.generated.net.minecraft.server.EntityHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityItemHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityMetadataHandle;
-import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityHandle;
 
 /**
@@ -27,6 +25,9 @@ public class TrackParticleItem extends TrackParticle {
     private UUID entityUUID = null;
     private boolean positionChanged = false;
     private boolean itemChanged = false;
+    private final TrackParticleEntityPosition protPosition = new TrackParticleEntityPosition();
+    private PacketPlayOutSpawnEntityHandle spawnPacket = null;
+    private final PacketPlayOutEntityMetadataHandle[] metaPackets = new PacketPlayOutEntityMetadataHandle[TrackParticleState.values().length];
 
     public TrackParticleItem(TrackParticleWorld world, Vector position) {
         super(world);
@@ -39,6 +40,8 @@ public class TrackParticleItem extends TrackParticle {
             this.position.setY(position.getY());
             this.position.setZ(position.getZ());
             this.positionChanged = true;
+            this.scheduleUpdateAppearance();
+            this.updateCell();
         }
     }
 
@@ -46,9 +49,16 @@ public class TrackParticleItem extends TrackParticle {
         if (!this.itemType.equals(itemType)) {
             this.itemType = itemType;
             this.itemChanged = true;
+            this.scheduleUpdateAppearance();
+            Arrays.fill(this.metaPackets, null);
         }
     }
 
+    @Override
+    public Vector getCellPosition() {
+        return this.position;
+    }
+
     @Override
     public double distanceSquared(Vector viewerPosition) {
         return this.position.distanceSquared(viewerPosition);
@@ -63,24 +73,20 @@ public class TrackParticleItem extends TrackParticle {
     public void updateAppearance() {
         if (this.positionChanged) {
             this.positionChanged = false;
-            if (this.entityId != -1) {
-                PacketPlayOutEntityTeleportHandle tpPacket = PacketPlayOutEntityTeleportHandle.createNew(
-                        this.entityId,
+            if (this.entityId != -1 && this.protPosition.isInitialized()) {
+                this.broadcastMove(this.entityId, this.protPosition,
                         this.position.getX() + OFFSET.getX(),
                         this.position.getY() + OFFSET.getY(),
-                        this.position.getZ() + OFFSET.getZ(),
-                        0.0f, 0.0f, false);
-                broadcastPacket(tpPacket);
+                        this.position.getZ() + OFFSET.getZ());
+                this.spawnPacket = null;
             }
         }
         if (this.itemChanged) {
             this.itemChanged = false;
 
-            for (Player viewer : this.getViewers()) {
-                DataWatcher metadata = new DataWatcher();
-                metadata.set(EntityItemHandle.DATA_ITEM, this.itemType.getItem(this.getState(viewer)));
-                PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-                PacketUtil.sendPacket(viewer, metaPacket);
+            for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+                Player viewer = this.getWorld().getViewer(slot);
+                this.sendPacket(viewer, this.getMetaPacket(this.getState(viewer)));
             }
         }
     }
@@ -89,51 +95,63 @@ public class TrackParticleItem extends TrackParticle {
     public void onStateUpdated(Player viewer) {
         super.onStateUpdated(viewer);
 
-        DataWatcher metadata = new DataWatcher();
-        metadata.set(EntityItemHandle.DATA_ITEM, this.itemType.getItem(this.getState(viewer)));
-        PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-        PacketUtil.sendPacket(viewer, metaPacket);
+        if (this.isViewer(viewer)) {
+            this.sendPacket(viewer, this.getMetaPacket(this.getState(viewer)));
+        }
     }
 
     @Override
     public void makeVisibleFor(Player viewer) {
-        if (this.entityId == -1) {
-            this.entityId = EntityUtil.getUniqueEntityId();
-            this.entityUUID = UUID.randomUUID();
+        if (this.spawnPacket == null) {
+            if (this.entityId == -1) {
+                this.entityId = this.allocateEntityId();
+                this.entityUUID = UUID.randomUUID();
+            }
+
+            // Spawn at the position known by the other viewers, so that later moves apply to all of them
+            if (!this.protPosition.isInitialized()) {
+                this.protPosition.set(this.position.getX() + OFFSET.getX(),
+                                      this.position.getY() + OFFSET.getY(),
+                                      this.position.getZ() + OFFSET.getZ());
+            }
+
+            this.spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
+            this.spawnPacket.setEntityId(this.entityId);
+            this.spawnPacket.setEntityUUID(this.entityUUID);
+            this.spawnPacket.setEntityTypeId(2);
+            this.spawnPacket.setExtraData(1);
+            this.spawnPacket.setPosX(this.protPosition.getX());
+            this.spawnPacket.setPosY(this.protPosition.getY());
+            this.spawnPacket.setPosZ(this.protPosition.getZ());
+            this.spawnPacket.setMotX(0.0);
+            this.spawnPacket.setMotY(0.0);
+            this.spawnPacket.setMotZ(0.0);
+            this.spawnPacket.setPitch(0.0f);
+            this.spawnPacket.setYaw(0.0f);
         }
 
-        PacketPlayOutSpawnEntityHandle spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
-        spawnPacket.setEntityId(this.entityId);
-        spawnPacket.setEntityUUID(this.entityUUID);
-        spawnPacket.setEntityTypeId(2);
-        spawnPacket.setExtraData(1);
-        spawnPacket.setPosX(this.position.getX() + OFFSET.getX());
-        spawnPacket.setPosY(this.position.getY() + OFFSET.getY());
-        spawnPacket.setPosZ(this.position.getZ() + OFFSET.getZ());
-        spawnPacket.setMotX(0.0);
-        spawnPacket.setMotY(0.0);
-        spawnPacket.setMotZ(0.0);
-        spawnPacket.setPitch(0.0f);
-        spawnPacket.setYaw(0.0f);
-        PacketUtil.sendPacket(viewer, spawnPacket);
-
-        DataWatcher metadata = new DataWatcher();
-        metadata.set(EntityItemHandle.DATA_ITEM, this.itemType.getItem(this.getState(viewer)));
-        metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
-        metadata.set(EntityHandle.DATA_FLAGS, (byte) EntityHandle.DATA_FLAG_FLYING);
-        PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-        PacketUtil.sendPacket(viewer, metaPacket);
+        this.sendPacket(viewer, this.spawnPacket);
+        this.sendPacket(viewer, this.getMetaPacket(this.getState(viewer)));
     }
 
-    @Override
-    public void makeHiddenFor(Player viewer) {
-        if (this.entityId != -1) {
-            PacketUtil.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
+    // The metadata packets are shared by all viewers with the same state, and rebuilt after the item changes
+    private PacketPlayOutEntityMetadataHandle getMetaPacket(TrackParticleState state) {
+        PacketPlayOutEntityMetadataHandle metaPacket = this.metaPackets[state.ordinal()];
+        if (metaPacket == null) {
+            DataWatcher metadata = new DataWatcher();
+            metadata.set(EntityItemHandle.DATA_ITEM, this.itemType.getItem(state));
+            metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
+            metadata.set(EntityHandle.DATA_FLAGS, (byte) EntityHandle.DATA_FLAG_FLYING);
+            metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
+            this.metaPackets[state.ordinal()] = metaPacket;
         }
+        return metaPacket;
     }
 
     @Override
-    public boolean usesEntityId(int entityId) {
-        return this.entityId == entityId;
+    public void makeHiddenFor(Player viewer) {
+        if (this.entityId != -1) {
+            this.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
+        }
     }
 }
@@ -6,15 +6,12 @@ import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.common.protocol.PacketType;
-import com.bergerkiller.bukkit.common.utils.EntityUtil;
-import com.bergerkiller.bukkit.common.utils.PacketUtil;
 import com.bergerkiller.bukkit.common.wrappers.DataWatcher;
 import com.bergerkiller.generated.net.minecraft.server.EntityBatHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityInsentientHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityLivingHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutAttachEntityHandle;
-import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityLivingHandle;
 
 /**
@@ -24,16 +21,46 @@ public class TrackParticleLine extends TrackParticle {
     private static final Vector OFFSET1 = new Vector(0.7, 0.16, -0.5);
     private static final Vector OFFSET2 = new Vector(0.0, -1.1, -0.2);
     private static final double VIEW_RADIUS = 128.0;
+    private final TrackParticleLineDetail detail;
+    private final int level;
     private Vector p1 = null, p2 = null;
     private int e1 = -1, e2 = -1;
     private boolean positionChanged = false;
     private boolean needsRespawn = false;
+    private UUID uuid1 = null, uuid2 = null;
+    private final TrackParticleEntityPosition protPosition1 = new TrackParticleEntityPosition();
+    private final TrackParticleEntityPosition protPosition2 = new TrackParticleEntityPosition();
+    private PacketPlayOutSpawnEntityLivingHandle spawnPacket1 = null, spawnPacket2 = null;
+    private PacketPlayOutAttachEntityHandle attachPacket = null;
 
     public TrackParticleLine(TrackParticleWorld world, Vector p1, Vector p2) {
+        this(world, p1, p2, null, 0);
+    }
+
+    /**
+     * Creates a line that is displayed at one level of detail of a connection
+     * 
+     * @param world
+     * @param p1 first point of the line
+     * @param p2 second point of the line
+     * @param detail picks the level of detail displayed to viewers, null to always display
+     * @param level of detail of this line
+     */
+    public TrackParticleLine(TrackParticleWorld world, Vector p1, Vector p2, TrackParticleLineDetail detail, int level) {
         super(world);
+        this.detail = detail;
+        this.level = level;
         this.setPositions(p1, p2);
     }
 
+    /**
+     * Called after the level of detail displayed to viewers may have changed,
+     * so that it is checked again whether this line is visible
+     */
+    public void onDetailChanged() {
+        this.scheduleUpdateVisibility();
+    }
+
     public void setPositions(Vector p1, Vector p2) {
         // Swap p1 and p2 sometimes, as it reduces hanging ellipsis effects
         if (p1.getY() > p2.getY()) {
@@ -53,17 +80,34 @@ public class TrackParticleLine extends TrackParticle {
 
             // Mark position changed and update points
             this.positionChanged = true;
+            this.scheduleUpdateAppearance();
             this.p1 = p1.clone();
             this.p2 = p2.clone();
+            this.updateCell();
         }
     }
 
+    @Override
+    public Vector getCellPosition() {
+        return this.p1;
+    }
+
     @Override
     public double distanceSquared(Vector viewerPosition) {
         return Math.min(this.p1.distanceSquared(viewerPosition),
                         this.p2.distanceSquared(viewerPosition));
     }
 
+    @Override
+    public boolean isVisible(Vector viewerPosition) {
+        return super.isVisible(viewerPosition) && (this.detail == null || this.detail.getLevel(viewerPosition) == this.level);
+    }
+
+    @Override
+    public boolean isVisible(int slot, Vector viewerPosition) {
+        return super.isVisible(viewerPosition) && (this.detail == null || this.detail.getLevel(slot, viewerPosition) == this.level);
+    }
+
     @Override
     public double getViewDistance() {
         return VIEW_RADIUS;
@@ -74,7 +118,12 @@ public class TrackParticleLine extends TrackParticle {
         if (this.needsRespawn) {
             this.needsRespawn = false;
             this.positionChanged = false;
-            for (Player player : this.getViewers()) {
+            this.protPosition1.reset();
+            this.protPosition2.reset();
+            this.spawnPacket1 = null;
+            this.spawnPacket2 = null;
+            for (int slot = this.nextViewerSlot(0); slot != -1; slot = this.nextViewerSlot(slot + 1)) {
+                Player player = this.getWorld().getViewer(slot);
                 makeHiddenFor(player);
                 makeVisibleFor(player);
             }
@@ -82,23 +131,19 @@ public class TrackParticleLine extends TrackParticle {
         if (this.positionChanged) {
             this.positionChanged = false;
 
-            if (this.e1 != -1) {
-                PacketPlayOutEntityTeleportHandle tpPacket = PacketPlayOutEntityTeleportHandle.createNew(
-                        this.e1,
+            if (this.e1 != -1 && this.protPosition1.isInitialized()) {
+                this.broadcastMove(this.e1, this.protPosition1,
                         this.p1.getX() + OFFSET1.getX(),
                         this.p1.getY() + OFFSET1.getY(),
-                        this.p1.getZ() + OFFSET1.getZ(),
-                        0.0f, 0.0f, false);
-                broadcastPacket(tpPacket);
+                        this.p1.getZ() + OFFSET1.getZ());
+                this.spawnPacket1 = null;
             }
-            if (this.e2 != -1) {
-                PacketPlayOutEntityTeleportHandle tpPacket = PacketPlayOutEntityTeleportHandle.createNew(
-                        this.e2,
+            if (this.e2 != -1 && this.protPosition2.isInitialized()) {
+                this.broadcastMove(this.e2, this.protPosition2,
                         this.p2.getX() + OFFSET2.getX(),
                         this.p2.getY() + OFFSET2.getY(),
-                        this.p2.getZ() + OFFSET2.getZ(),
-                        0.0f, 0.0f, false);
-                broadcastPacket(tpPacket);
+                        this.p2.getZ() + OFFSET2.getZ());
+                this.spawnPacket2 = null;
             }
         }
     }
@@ -106,56 +151,64 @@ public class TrackParticleLine extends TrackParticle {
     @Override
     public void makeHiddenFor(Player viewer) {
         if (this.e1 != -1 && this.e2 != -1) {
-            PacketUtil.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.e1, this.e2));
+            this.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.e1, this.e2));
+        }
+        if (this.detail != null) {
+            this.detail.onLineHidden();
         }
     }
 
     @Override
     public void makeVisibleFor(Player viewer) {
         if (this.e1 == -1 || this.e2 == -1) {
-            this.e1 = EntityUtil.getUniqueEntityId();
-            this.e2 = EntityUtil.getUniqueEntityId();
+            this.e1 = this.allocateEntityId();
+            this.e2 = this.allocateEntityId();
+            this.uuid1 = UUID.randomUUID();
+            this.uuid2 = UUID.randomUUID();
+
+            this.attachPacket = PacketPlayOutAttachEntityHandle.T.newHandleNull();
+            this.attachPacket.setVehicleId(this.e1);
+            this.attachPacket.setPassengerId(this.e2);
+        }
+
+        // Spawn packets are shared by all viewers, and rebuilt after the positions change
+        // The entities are spawned at the positions known by the other viewers, so that later moves apply to all of them
+        if (this.spawnPacket1 == null) {
+            if (!this.protPosition1.isInitialized()) {
+                this.protPosition1.set(this.p1.getX() + OFFSET1.getX(),
+                                       this.p1.getY() + OFFSET1.getY(),
+                                       this.p1.getZ() + OFFSET1.getZ());
+            }
+            this.spawnPacket1 = createSpawnPacket(this.e1, this.uuid1, this.protPosition1);
+        }
+        if (this.spawnPacket2 == null) {
+            if (!this.protPosition2.isInitialized()) {
+                this.protPosition2.set(this.p2.getX() + OFFSET2.getX(),
+                                       this.p2.getY() + OFFSET2.getY(),
+                                       this.p2.getZ() + OFFSET2.getZ());
+            }
+            this.spawnPacket2 = createSpawnPacket(this.e2, this.uuid2, this.protPosition2);
         }
 
-        PacketPlayOutSpawnEntityLivingHandle p1 = PacketPlayOutSpawnEntityLivingHandle.createNew();
-        p1.setEntityId(this.e1);
-        p1.setEntityUUID(UUID.randomUUID());
-        p1.setPosX(this.p1.getX() + OFFSET1.getX());
-        p1.setPosY(this.p1.getY() + OFFSET1.getY());
-        p1.setPosZ(this.p1.getZ() + OFFSET1.getZ());
-        p1.setEntityTypeId(65); // bat
-        p1.setDataWatcher(new DataWatcher());
-        p1.getDataWatcher().set(EntityHandle.DATA_FLAGS, (byte) (EntityHandle.DATA_FLAG_INVISIBLE | EntityHandle.DATA_FLAG_FLYING));
-        p1.getDataWatcher().set(EntityHandle.DATA_SILENT, true);
-        p1.getDataWatcher().set(EntityInsentientHandle.DATA_INSENTIENT_FLAGS, (byte) EntityInsentientHandle.DATA_INSENTIENT_FLAG_NOAI);
-        p1.getDataWatcher().set(EntityLivingHandle.DATA_NO_GRAVITY, true);
-        p1.getDataWatcher().set(EntityBatHandle.DATA_BAT_FLAGS, (byte) 0);
-
-        PacketPlayOutSpawnEntityLivingHandle p2 = PacketPlayOutSpawnEntityLivingHandle.createNew();
-        p2.setEntityId(this.e2);
-        p2.setEntityUUID(UUID.randomUUID());
-        p2.setPosX(this.p2.getX() + OFFSET2.getX());
-        p2.setPosY(this.p2.getY() + OFFSET2.getY());
-        p2.setPosZ(this.p2.getZ() + OFFSET2.getZ());
-        p2.setEntityTypeId(65); // bat
-        p2.setDataWatcher(new DataWatcher());
-        p2.getDataWatcher().set(EntityHandle.DATA_FLAGS, (byte) (EntityHandle.DATA_FLAG_INVISIBLE | EntityHandle.DATA_FLAG_FLYING));
-        p2.getDataWatcher().set(EntityHandle.DATA_SILENT, true);
-        p2.getDataWatcher().set(EntityInsentientHandle.DATA_INSENTIENT_FLAGS, (byte) EntityInsentientHandle.DATA_INSENTIENT_FLAG_NOAI);
-        p2.getDataWatcher().set(EntityLivingHandle.DATA_NO_GRAVITY, true);
-        p2.getDataWatcher().set(EntityBatHandle.DATA_BAT_FLAGS, (byte) 0);
-
-        PacketUtil.sendPacket(viewer, p1);
-        PacketUtil.sendPacket(viewer, p2);
-
-        PacketPlayOutAttachEntityHandle ap1 = PacketPlayOutAttachEntityHandle.T.newHandleNull();
-        ap1.setVehicleId(this.e1);
-        ap1.setPassengerId(this.e2);
-        PacketUtil.sendPacket(viewer, ap1);
+        this.sendPacket(viewer, this.spawnPacket1);
+        this.sendPacket(viewer, this.spawnPacket2);
+        this.sendPacket(viewer, this.attachPacket);
     }
 
-    @Override
-    public boolean usesEntityId(int entityId) {
-        return this.e1 == entityId || this.e2 == entityId;
+    private static PacketPlayOutSpawnEntityLivingHandle createSpawnPacket(int entityId, UUID entityUUID, TrackParticleEntityPosition position) {
+        PacketPlayOutSpawnEntityLivingHandle packet = PacketPlayOutSpawnEntityLivingHandle.createNew();
+        packet.setEntityId(entityId);
+        packet.setEntityUUID(entityUUID);
+        packet.setPosX(position.getX());
+        packet.setPosY(position.getY());
+        packet.setPosZ(position.getZ());
+        packet.setEntityTypeId(65); // bat
+        packet.setDataWatcher(new DataWatcher());
+        packet.getDataWatcher().set(EntityHandle.DATA_FLAGS, (byte) (EntityHandle.DATA_FLAG_INVISIBLE | EntityHandle.DATA_FLAG_FLYING));
+        packet.getDataWatcher().set(EntityHandle.DATA_SILENT, true);
+        packet.getDataWatcher().set(EntityInsentientHandle.DATA_INSENTIENT_FLAGS, (byte) EntityInsentientHandle.DATA_INSENTIENT_FLAG_NOAI);
+        packet.getDataWatcher().set(EntityLivingHandle.DATA_NO_GRAVITY, true);
+        packet.getDataWatcher().set(EntityBatHandle.DATA_BAT_FLAGS, (byte) 0);
+        return packet;
     }
 }
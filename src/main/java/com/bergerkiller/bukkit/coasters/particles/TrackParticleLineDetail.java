@@ -0,0 +1,254 @@
+package com.bergerkiller.bukkit.coasters.particles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.util.Vector;
+
+/**
+ * Displays the lines of a single track connection at multiple levels of detail.
+ * All lines of the connection use the same level for a viewer, picked using the distance from the viewer
+ * to the nearest point of the connection. This way exactly one level is displayed, without gaps
+ * where the lines of two levels meet.<br>
+ * <br>
+ * The level of every viewer is computed once per viewer position and cached by viewer slot.
+ * Only the lines of the levels viewers need are created. The lines of the coarsest level always exist,
+ * so that viewers approaching the connection find it and request the more detailed levels.
+ */
+public class TrackParticleLineDetail {
+    private static final Vector[] NO_POINTS = new Vector[0];
+    private static final int[] NO_LEVELS = new int[0];
+    private final TrackParticleWorld world;
+    private final int[] segmentSteps;
+    private final double[] viewDistances;
+    private final List<List<TrackParticleLine>> lines;
+    private Vector[] points = NO_POINTS;
+    private Vector[] detailPoints = NO_POINTS;
+    private int numLevels = 0;
+    // Viewer position for which the level of a viewer slot was computed, and that level
+    private Vector[] slotPositions = NO_POINTS;
+    private int[] slotLevels = NO_LEVELS;
+    protected boolean levelsChanged = false;
+
+    /**
+     * Creates a new level of detail line display
+     * 
+     * @param world to add the lines to
+     * @param segmentSteps number of points merged into a single line for every level, from detailed to coarse
+     * @param viewDistances distance from the viewer at which every level is displayed, from detailed to coarse
+     */
+    public TrackParticleLineDetail(TrackParticleWorld world, int[] segmentSteps, double[] viewDistances) {
+        this.world = world;
+        this.segmentSteps = segmentSteps;
+        this.viewDistances = viewDistances;
+        this.lines = new ArrayList<List<TrackParticleLine>>(segmentSteps.length);
+        for (int lod = 0; lod < segmentSteps.length; lod++) {
+            this.lines.add(new ArrayList<TrackParticleLine>());
+        }
+    }
+
+    /**
+     * Sets the points of the connection. The most detailed level displays a line between every two points,
+     * coarser levels merge multiple of these lines into one line. Levels that would not use fewer lines
+     * than the level before are left out. Lines of levels that exist are moved to the new points.
+     * 
+     * @param points of the connection, at least 2
+     */
+    public void update(Vector[] points) {
+        int n = points.length;
+        int numLevels = 0;
+        int numLevelLines = Integer.MAX_VALUE;
+        for (int lod = 0; lod < this.segmentSteps.length; lod++) {
+            int numLines = getLineCount(n, this.segmentSteps[lod]);
+            if (numLines < numLevelLines) {
+                numLevels = lod + 1;
+                numLevelLines = numLines;
+            }
+        }
+        this.points = points;
+        this.numLevels = numLevels;
+
+        // The points of the coarsest level are used to pick the level displayed to a viewer
+        int step = this.segmentSteps[numLevels - 1];
+        this.detailPoints = new Vector[numLevelLines + 1];
+        for (int i = 0; i < numLevelLines; i++) {
+            this.detailPoints[i] = points[i * step];
+        }
+        this.detailPoints[numLevelLines] = points[n - 1];
+
+        // Move the lines of the levels that exist, and make sure the coarsest level exists
+        for (int lod = 0; lod < this.lines.size(); lod++) {
+            if (lod >= numLevels) {
+                this.removeLines(lod);
+            } else if (lod == (numLevels - 1) || !this.lines.get(lod).isEmpty()) {
+                this.updateLines(lod);
+            }
+        }
+
+        // Levels are computed again for all viewers
+        Arrays.fill(this.slotPositions, null);
+        this.onLevelsChanged();
+        this.world.scheduleUpdateLevels(this);
+    }
+
+    /**
+     * Removes all lines
+     */
+    public void remove() {
+        for (int lod = 0; lod < this.lines.size(); lod++) {
+            this.removeLines(lod);
+        }
+        this.points = NO_POINTS;
+        this.detailPoints = NO_POINTS;
+        this.numLevels = 0;
+        Arrays.fill(this.slotPositions, null);
+    }
+
+    /**
+     * Gets the level of detail displayed to a viewer. The level is only computed again
+     * when the viewer position differs from the one it was last computed for.
+     * When the lines of the level the viewer needs do not exist yet, they are created
+     * the next update and the coarsest level is displayed meanwhile.
+     * 
+     * @param slot of the viewer
+     * @param viewerPosition
+     * @return level of detail, 0 being the most detailed
+     */
+    public int getLevel(int slot, Vector viewerPosition) {
+        if (this.numLevels == 0) {
+            return 0;
+        }
+        int level;
+        if (slot < this.slotPositions.length && this.slotPositions[slot] == viewerPosition) {
+            level = this.slotLevels[slot];
+        } else {
+            if (slot >= this.slotPositions.length) {
+                int length = this.world.getViewerSlotWords() << 6;
+                this.slotPositions = Arrays.copyOf(this.slotPositions, Math.max(slot + 1, length));
+                this.slotLevels = Arrays.copyOf(this.slotLevels, this.slotPositions.length);
+            }
+            int oldLevel = (this.slotPositions[slot] == null) ? -1 : this.slotLevels[slot];
+            level = this.getLevel(viewerPosition);
+            this.slotPositions[slot] = viewerPosition;
+            this.slotLevels[slot] = level;
+            if (level != oldLevel && (oldLevel != -1 || this.lines.get(level).isEmpty())) {
+                this.world.scheduleUpdateLevels(this);
+            }
+        }
+        return this.lines.get(level).isEmpty() ? (this.numLevels - 1) : level;
+    }
+
+    /**
+     * Gets the level of detail to display to a viewer
+     * 
+     * @param viewerPosition
+     * @return level of detail, 0 being the most detailed
+     */
+    public int getLevel(Vector viewerPosition) {
+        double minDistSq = Double.MAX_VALUE;
+        for (Vector point : this.detailPoints) {
+            minDistSq = Math.min(minDistSq, point.distanceSquared(viewerPosition));
+        }
+        int level = 0;
+        while (level < (this.numLevels - 1) && minDistSq >= (this.viewDistances[level + 1] * this.viewDistances[level + 1])) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Called after a line is hidden for a viewer, as the viewer might no longer need its level
+     */
+    protected void onLineHidden() {
+        this.world.scheduleUpdateLevels(this);
+    }
+
+    /**
+     * Creates the lines of the levels viewers need, and removes the lines of levels
+     * no viewer needs anymore once they are no longer displayed to anyone.
+     */
+    protected void updateLevels() {
+        if (this.numLevels == 0) {
+            return;
+        }
+
+        boolean[] needed = new boolean[this.numLevels];
+        needed[this.numLevels - 1] = true;
+        for (int slot = 0; slot < this.slotPositions.length; slot++) {
+            // Levels computed for viewers that since moved out of range are no longer needed
+            if (this.slotPositions[slot] != null && this.slotPositions[slot] == this.world.getViewerPosition(slot)) {
+                needed[this.slotLevels[slot]] = true;
+            }
+        }
+
+        boolean created = false;
+        for (int lod = 0; lod < this.numLevels; lod++) {
+            List<TrackParticleLine> lodLines = this.lines.get(lod);
+            if (needed[lod] && lodLines.isEmpty()) {
+                this.updateLines(lod);
+                created = true;
+            } else if (!needed[lod] && !lodLines.isEmpty()) {
+                if (hasViewers(lodLines)) {
+                    // Wait for the lines to be despawned for all viewers
+                    this.world.scheduleUpdateLevels(this);
+                } else {
+                    this.removeLines(lod);
+                }
+            }
+        }
+
+        // Viewers that were shown the coarsest level meanwhile switch to the new level
+        if (created) {
+            this.onLevelsChanged();
+        }
+    }
+
+    private void onLevelsChanged() {
+        for (List<TrackParticleLine> lodLines : this.lines) {
+            for (int i = 0; i < lodLines.size(); i++) {
+                lodLines.get(i).onDetailChanged();
+            }
+        }
+    }
+
+    // Existing lines are moved to their new positions, and only the difference
+    // in number of lines is added or removed
+    private void updateLines(int lod) {
+        List<TrackParticleLine> lodLines = this.lines.get(lod);
+        int step = this.segmentSteps[lod];
+        int numLines = getLineCount(this.points.length, step);
+        int numReused = Math.min(lodLines.size(), numLines);
+        for (int i = 0; i < numReused; i++) {
+            lodLines.get(i).setPositions(this.points[i * step], this.points[Math.min((i + 1) * step, this.points.length - 1)]);
+        }
+        while (lodLines.size() > numLines) {
+            lodLines.remove(lodLines.size() - 1).remove();
+        }
+        for (int i = lodLines.size(); i < numLines; i++) {
+            lodLines.add(this.world.addParticleLine(this.points[i * step],
+                    this.points[Math.min((i + 1) * step, this.points.length - 1)], this, lod));
+        }
+    }
+
+    private void removeLines(int lod) {
+        List<TrackParticleLine> lodLines = this.lines.get(lod);
+        for (int i = 0; i < lodLines.size(); i++) {
+            lodLines.get(i).remove();
+        }
+        lodLines.clear();
+    }
+
+    private static boolean hasViewers(List<TrackParticleLine> lodLines) {
+        for (int i = 0; i < lodLines.size(); i++) {
+            if (lodLines.get(i).nextViewerSlot(0) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getLineCount(int numPoints, int step) {
+        return (numPoints - 2) / step + 1;
+    }
+}
@@ -0,0 +1,114 @@
+package com.bergerkiller.bukkit.coasters.particles;
+
+import java.util.ArrayDeque;
+
+import org.bukkit.entity.Player;
+
+import com.bergerkiller.bukkit.common.protocol.CommonPacket;
+import com.bergerkiller.bukkit.common.utils.PacketUtil;
+import com.bergerkiller.generated.net.minecraft.server.PacketHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutAttachEntityHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityEquipmentHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityMetadataHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityHandle;
+import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityLivingHandle;
+
+/**
+ * Collects all the particle packets sent to a single viewer during a tick,
+ * so that the number of packets and (estimated) bytes sent every tick can be limited.
+ * The remainder is deferred to the next tick in the same order.<br>
+ * <br>
+ * This does not batch the packets on the connection: BKCommonLib has no way to write
+ * packets without flushing them, so every packet is still sent and flushed on its own.
+ */
+public class TrackParticlePacketQueue {
+    /**
+     * Maximum number of packets sent to a single viewer every tick
+     */
+    public static final int MAX_PACKETS_PER_TICK = 1500;
+    /**
+     * Maximum number of estimated packet bytes sent to a single viewer every tick
+     */
+    public static final int MAX_BYTES_PER_TICK = 96 * 1024;
+    private final Player viewer;
+    private final ArrayDeque<Object> packets = new ArrayDeque<Object>();
+
+    public TrackParticlePacketQueue(Player viewer) {
+        this.viewer = viewer;
+    }
+
+    public Player getViewer() {
+        return this.viewer;
+    }
+
+    public void add(PacketHandle packet) {
+        this.packets.add(packet);
+    }
+
+    public void add(CommonPacket packet) {
+        this.packets.add(packet);
+    }
+
+    public boolean isEmpty() {
+        return this.packets.isEmpty();
+    }
+
+    public int size() {
+        return this.packets.size();
+    }
+
+    public void clear() {
+        this.packets.clear();
+    }
+
+    /**
+     * Sends the queued packets to the viewer, one {@link PacketUtil#sendPacket(Player, PacketHandle)} at a time
+     * 
+     * @param limited whether to limit the packets sent to the per-tick maximums
+     * @return number of packets sent
+     */
+    public int flush(boolean limited) {
+        int numPackets = 0;
+        int numBytes = 0;
+        Object packet;
+        while ((packet = this.packets.poll()) != null) {
+            if (packet instanceof PacketHandle) {
+                PacketUtil.sendPacket(this.viewer, (PacketHandle) packet);
+            } else {
+                PacketUtil.sendPacket(this.viewer, (CommonPacket) packet);
+            }
+
+            // Stop once the limits are reached
+            if (limited) {
+                numPackets++;
+                numBytes += estimateSize(packet);
+                if (numPackets >= MAX_PACKETS_PER_TICK || numBytes >= MAX_BYTES_PER_TICK) {
+                    break;
+                }
+            } else {
+                numPackets++;
+            }
+        }
+        return numPackets;
+    }
+
+    // Rough estimate of the number of bytes a packet takes up on the wire
+    private static int estimateSize(Object packet) {
+        if (packet instanceof PacketPlayOutSpawnEntityLivingHandle) {
+            return 80;
+        } else if (packet instanceof PacketPlayOutSpawnEntityHandle) {
+            return 48;
+        } else if (packet instanceof PacketPlayOutEntityMetadataHandle) {
+            return 40;
+        } else if (packet instanceof PacketPlayOutEntityEquipmentHandle) {
+            return 24;
+        } else if (packet instanceof PacketPlayOutEntityTeleportHandle) {
+            return 32;
+        } else if (packet instanceof PacketPlayOutAttachEntityHandle) {
+            return 12;
+        } else {
+            return 16;
+        }
+    }
+}
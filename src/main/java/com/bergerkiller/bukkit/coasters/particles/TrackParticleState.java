@@ -10,7 +10,8 @@ public enum TrackParticleState {
 
     /**
      * Source providing track particle state information
-     * for a particular player
+     * for a particular player. A single source is shared by many particles,
+     * which tell them apart using an id.
      */
     public static interface Source {
 
@@ -18,14 +19,15 @@ public enum TrackParticleState {
          * Gets particle state information for a particular player
          * 
          * @param viewer
+         * @param id of the particle, as set using {@link TrackParticle#setStateSource(Source, int)}
          * @return state
          */
-        public TrackParticleState getState(Player viewer);
+        public TrackParticleState getState(Player viewer, int id);
     }
 
     public static Source SOURCE_NONE = new Source() {
         @Override
-        public TrackParticleState getState(Player viewer) {
+        public TrackParticleState getState(Player viewer, int id) {
             return DEFAULT;
         }
     };
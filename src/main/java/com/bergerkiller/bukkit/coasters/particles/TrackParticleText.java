@@ -13,16 +13,13 @@ import org.bukkit.material.MaterialData;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.common.protocol.PacketType;
-import com.bergerkiller.bukkit.common.utils.EntityUtil;
 import com.bergerkiller.bukkit.common.utils.ItemUtil;
-import com.bergerkiller.bukkit.common.utils.PacketUtil;
 import com.bergerkiller.bukkit.common.utils.ParseUtil;
 import com.bergerkiller.bukkit.common.utils.StringUtil;
 import com.bergerkiller.bukkit.common.wrappers.DataWatcher;
 import com.bergerkiller.generated.net.minecraft.server.EntityHandle;
 import com.bergerkiller.generated.net.minecraft.server.EntityItemHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityMetadataHandle;
-import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutEntityTeleportHandle;
 import com.bergerkiller.generated.net.minecraft.server.PacketPlayOutSpawnEntityHandle;
 
 /**
@@ -41,6 +38,9 @@ public class TrackParticleText extends TrackParticle {
     private boolean positionChanged = false;
     private boolean textChanged = false;
     private boolean textColorChanged = false;
+    private final TrackParticleEntityPosition protPosition = new TrackParticleEntityPosition();
+    private PacketPlayOutSpawnEntityHandle spawnPacket = null;
+    private PacketPlayOutEntityMetadataHandle spawnMetaPacket = null;
 
     protected TrackParticleText(TrackParticleWorld world, Vector position, String text) {
         super(world);
@@ -53,6 +53,8 @@ public class TrackParticleText extends TrackParticle {
         if (!position.equals(this.position)) {
             this.position = position.clone();
             this.positionChanged = true;
+            this.scheduleUpdateAppearance();
+            this.updateCell();
         }
     }
 
@@ -60,6 +62,8 @@ public class TrackParticleText extends TrackParticle {
         if (!this.text.equals(text)) {
             this.text = text;
             this.textChanged = true;
+            this.scheduleUpdateAppearance();
+            this.spawnMetaPacket = null;
             ChatColor color = getTextColor(text);
             if (this.textColor != color) {
                 this.textColor = color;
@@ -68,6 +72,11 @@ public class TrackParticleText extends TrackParticle {
         }
     }
 
+    @Override
+    public Vector getCellPosition() {
+        return this.position;
+    }
+
     @Override
     public double distanceSquared(Vector viewerPosition) {
         return this.position.distanceSquared(viewerPosition);
@@ -81,38 +90,50 @@ public class TrackParticleText extends TrackParticle {
     @Override
     public void makeVisibleFor(Player viewer) {
         if (this.entityId == -1) {
-            this.entityId = EntityUtil.getUniqueEntityId();
+            this.entityId = this.allocateEntityId();
             this.entityUUID = UUID.randomUUID();
         }
 
-        PacketPlayOutSpawnEntityHandle spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
-        spawnPacket.setEntityId(this.entityId);
-        spawnPacket.setEntityUUID(this.entityUUID);
-        spawnPacket.setEntityTypeId(2);
-        spawnPacket.setExtraData(1);
-        spawnPacket.setPosX(this.position.getX() + OFFSET.getX());
-        spawnPacket.setPosY(this.position.getY() + OFFSET.getY());
-        spawnPacket.setPosZ(this.position.getZ() + OFFSET.getZ());
-        spawnPacket.setMotX(0.0);
-        spawnPacket.setMotY(0.0);
-        spawnPacket.setMotZ(0.0);
-        spawnPacket.setPitch(0.0f);
-        spawnPacket.setYaw(0.0f);
-        PacketUtil.sendPacket(viewer, spawnPacket);
-
-        DataWatcher metadata = new DataWatcher();
-        metadata.set(EntityItemHandle.DATA_ITEM, getItem(this.textColor));
-        metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
-        metadata.set(EntityHandle.DATA_CUSTOM_NAME_VISIBLE, true);
-        metadata.set(EntityHandle.DATA_CUSTOM_NAME, this.text);
-        PacketPlayOutEntityMetadataHandle metaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
-        PacketUtil.sendPacket(viewer, metaPacket);
+        // Packets are shared by all viewers, and rebuilt after the position or text changes
+        if (this.spawnPacket == null) {
+            // Spawn at the position known by the other viewers, so that later moves apply to all of them
+            if (!this.protPosition.isInitialized()) {
+                this.protPosition.set(this.position.getX() + OFFSET.getX(),
+                                      this.position.getY() + OFFSET.getY(),
+                                      this.position.getZ() + OFFSET.getZ());
+            }
+
+            this.spawnPacket = PacketPlayOutSpawnEntityHandle.T.newHandleNull();
+            this.spawnPacket.setEntityId(this.entityId);
+            this.spawnPacket.setEntityUUID(this.entityUUID);
+            this.spawnPacket.setEntityTypeId(2);
+            this.spawnPacket.setExtraData(1);
+            this.spawnPacket.setPosX(this.protPosition.getX());
+            this.spawnPacket.setPosY(this.protPosition.getY());
+            this.spawnPacket.setPosZ(this.protPosition.getZ());
+            this.spawnPacket.setMotX(0.0);
+            this.spawnPacket.setMotY(0.0);
+            this.spawnPacket.setMotZ(0.0);
+            this.spawnPacket.setPitch(0.0f);
+            this.spawnPacket.setYaw(0.0f);
+        }
+        if (this.spawnMetaPacket == null) {
+            DataWatcher metadata = new DataWatcher();
+            metadata.set(EntityItemHandle.DATA_ITEM, getItem(this.textColor));
+            metadata.set(EntityHandle.DATA_NO_GRAVITY, true);
+            metadata.set(EntityHandle.DATA_CUSTOM_NAME_VISIBLE, true);
+            metadata.set(EntityHandle.DATA_CUSTOM_NAME, this.text);
+            this.spawnMetaPacket = PacketPlayOutEntityMetadataHandle.createNew(this.entityId, metadata, true);
+        }
+
+        this.sendPacket(viewer, this.spawnPacket);
+        this.sendPacket(viewer, this.spawnMetaPacket);
     }
 
     @Override
     public void makeHiddenFor(Player viewer) {
         if (this.entityId != -1) {
-            PacketUtil.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
+            this.sendPacket(viewer, PacketType.OUT_ENTITY_DESTROY.newInstance(this.entityId));
         }
     }
 
@@ -120,14 +141,12 @@ public class TrackParticleText extends TrackParticle {
     public void updateAppearance() {
         if (this.positionChanged) {
             this.positionChanged = false;
-            if (this.entityId != -1) {
-                PacketPlayOutEntityTeleportHandle tpPacket = PacketPlayOutEntityTeleportHandle.createNew(
-                        this.entityId,
+            if (this.entityId != -1 && this.protPosition.isInitialized()) {
+                this.broadcastMove(this.entityId, this.protPosition,
                         this.position.getX() + OFFSET.getX(),
                         this.position.getY() + OFFSET.getY(),
-                        this.position.getZ() + OFFSET.getZ(),
-                        0.0f, 0.0f, false);
-                broadcastPacket(tpPacket);
+                        this.position.getZ() + OFFSET.getZ());
+                this.spawnPacket = null;
             }
         }
         if (this.textChanged) {
@@ -145,11 +164,6 @@ public class TrackParticleText extends TrackParticle {
         }
     }
 
-    @Override
-    public boolean usesEntityId(int entityId) {
-        return this.entityId == entityId;
-    }
-
     /**
      * Gets a dynamic chat color using an index and prepends it to the text
      * 
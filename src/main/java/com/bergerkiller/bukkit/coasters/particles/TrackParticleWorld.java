@@ -1,23 +1,63 @@
 package com.bergerkiller.bukkit.coasters.particles;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.editor.PlayerEditState;
+import com.bergerkiller.bukkit.coasters.stats.TrackEvent;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
+import com.bergerkiller.bukkit.coasters.stats.TrackStatistics;
 import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
 import com.bergerkiller.bukkit.common.collections.ImmutablePlayerSet;
 import com.bergerkiller.bukkit.common.math.Quaternion;
+import com.bergerkiller.bukkit.common.utils.EntityUtil;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 
 /**
  * Tracks and updates all the particle items on a single world
  */
 public class TrackParticleWorld extends CoasterWorldAccess.Component {
+    /**
+     * Number of bits of block coordinates used to compute the cell coordinates of the spatial grid
+     */
+    public static final int CELL_BITS = 4;
+    /**
+     * Size of a single cell of the spatial grid, in blocks
+     */
+    public static final int CELL_SIZE = (1 << CELL_BITS);
+    /**
+     * Distance a viewer has to move before the visibility of all particles around it is re-evaluated
+     */
+    public static final double VIEWER_MOVE_THRESHOLD = 1.0;
     public List<TrackParticle> particles = new ArrayList<TrackParticle>();
-    private ImmutablePlayerSet players = ImmutablePlayerSet.EMPTY;
+    private final Map<IntVector3, List<TrackParticle>> cells = new HashMap<IntVector3, List<TrackParticle>>();
+    private final Map<Player, ViewerState> viewers = new HashMap<Player, ViewerState>();
+    private volatile Player[] viewerSlots = new Player[0];
+    private final Map<Integer, TrackParticle> particlesByEntityId = new ConcurrentHashMap<Integer, TrackParticle>();
+    private final Map<Player, TrackParticlePacketQueue> packetQueues = new HashMap<Player, TrackParticlePacketQueue>();
+    private final List<TrackParticle> visibilityChangedParticles = new ArrayList<TrackParticle>();
+    private List<TrackParticle> appearanceChangedParticles = new ArrayList<TrackParticle>();
+    private List<TrackParticle> appearanceChangedParticlesSwap = new ArrayList<TrackParticle>();
+    private List<TrackParticleLineDetail> levelsChangedDetails = new ArrayList<TrackParticleLineDetail>();
+    private List<TrackParticleLineDetail> levelsChangedDetailsSwap = new ArrayList<TrackParticleLineDetail>();
+    private final ArrayDeque<Integer> freeEntityIds = new ArrayDeque<Integer>();
+    private volatile ImmutablePlayerSet players = ImmutablePlayerSet.EMPTY;
+    private volatile ImmutablePlayerSet playersNearParticles = ImmutablePlayerSet.EMPTY;
+    private double maxViewDistance = 0.0;
 
     public TrackParticleWorld(CoasterWorldAccess world) {
         super(world);
@@ -31,6 +71,10 @@ public class TrackParticleWorld extends CoasterWorldAccess.Component {
         return addParticle(new TrackParticleLine(this, p1, p2));
     }
 
+    public TrackParticleLine addParticleLine(Vector p1, Vector p2, TrackParticleLineDetail detail, int level) {
+        return addParticle(new TrackParticleLine(this, p1, p2, detail, level));
+    }
+
     public TrackParticleItem addParticleItem(Vector position) {
         return addParticle(new TrackParticleItem(this, position));
     }
@@ -45,84 +89,638 @@ public class TrackParticleWorld extends CoasterWorldAccess.Component {
 
     protected <T extends TrackParticle> T addParticle(T particle) {
         this.particles.add(particle);
+        this.maxViewDistance = Math.max(this.maxViewDistance, particle.getViewDistance());
+        particle.cell = getCell(particle.getCellPosition());
+        addToCell(particle.cell, particle);
+        markVisibilityChanged(particle);
         return particle;
     }
 
     public void removeParticle(TrackParticle particle) {
         this.particles.remove(particle);
+        if (particle.cell != null) {
+            removeFromCell(particle.cell, particle);
+            particle.cell = null;
+        }
         particle.makeHiddenForAll();
+        releaseEntityIds(particle);
     }
 
     public void removeAll() {
         for (TrackParticle particle : this.particles) {
             particle.makeHiddenForAll();
+            particle.cell = null;
+            releaseEntityIds(particle);
         }
+        this.flushPackets(false);
         this.particles.clear();
+        this.particlesByEntityId.clear();
+        this.cells.clear();
+        this.visibilityChangedParticles.clear();
+        this.appearanceChangedParticles.clear();
+        for (TrackParticleLineDetail detail : this.levelsChangedDetails) {
+            detail.levelsChanged = false;
+        }
+        this.levelsChangedDetails.clear();
+        this.viewers.clear();
+        this.viewerSlots = new Player[0];
+        this.players = ImmutablePlayerSet.EMPTY;
+        this.playersNearParticles = ImmutablePlayerSet.EMPTY;
     }
 
     public void updateAll() {
+        TrackStatistics stats = this.getPlugin().getStatistics();
+        long startTime = stats.startTimer();
+
         for (Player viewer : Bukkit.getOnlinePlayers()) {
             this.update(viewer);
         }
+        for (TrackParticle particle : this.visibilityChangedParticles) {
+            particle.visibilityChanged = false;
+        }
+        this.visibilityChangedParticles.clear();
+
+        // Create and remove the lines of the levels of detail viewers started or stopped needing
+        // The visibility of lines created here is updated the next tick
+        List<TrackParticleLineDetail> details = this.levelsChangedDetails;
+        this.levelsChangedDetails = this.levelsChangedDetailsSwap;
+        this.levelsChangedDetailsSwap = details;
+        for (TrackParticleLineDetail detail : details) {
+            detail.levelsChanged = false;
+            detail.updateLevels();
+        }
+        details.clear();
+
+        // Spawn and despawn the particles that are pending, within the per-tick budget
+        int spawnBudget = this.getPlugin().getParticleSpawnBudget();
+        int despawnBudget = this.getPlugin().getParticleDespawnBudget();
+        Iterator<Map.Entry<Player, ViewerState>> stateIter = this.viewers.entrySet().iterator();
+        while (stateIter.hasNext()) {
+            Map.Entry<Player, ViewerState> entry = stateIter.next();
+            ViewerState state = entry.getValue();
+            state.processPending(entry.getKey(), spawnBudget, despawnBudget);
+            stats.particlesVisited.add(state.visited);
+            state.visited = 0;
+            if (state.region == null && !state.hasPending()) {
+                stateIter.remove();
+                this.releaseViewerSlot(state.slot);
+            }
+        }
+        stats.particleVisibilityTime.addTimeSince(startTime);
+
+        // Only update the appearance of particles that changed since the previous tick
+        // Particles that change again while updating are handled the next tick
+        long appearanceStartTime = stats.startTimer();
+        List<TrackParticle> changed = this.appearanceChangedParticles;
+        this.appearanceChangedParticles = this.appearanceChangedParticlesSwap;
+        this.appearanceChangedParticlesSwap = changed;
+        for (TrackParticle particle : changed) {
+            particle.appearanceChanged = false;
+            if (particle.cell != null) {
+                particle.updateAppearance();
+            }
+        }
+        changed.clear();
+        stats.packetsSent.add(this.flushPackets(true));
+        stats.particleAppearanceTime.addTimeSince(appearanceStartTime);
+
+        // Clean up state of players that are no longer online
+        Iterator<Player> iter = this.viewers.keySet().iterator();
+        while (iter.hasNext()) {
+            Player viewer = iter.next();
+            if (!viewer.isOnline()) {
+                this.releaseViewerSlot(this.viewers.get(viewer).slot);
+                iter.remove();
+                this.players = this.players.remove(viewer);
+                this.playersNearParticles = this.playersNearParticles.remove(viewer);
+            }
+        }
+
+        stats.particleUpdateTime.addTimeSince(startTime);
+    }
+
+    /**
+     * Gets the queue of packets that are sent to a viewer at the end of the tick
+     * 
+     * @param viewer
+     * @return packet queue
+     */
+    public TrackParticlePacketQueue getPacketQueue(Player viewer) {
+        TrackParticlePacketQueue queue = this.packetQueues.get(viewer);
+        if (queue == null) {
+            queue = new TrackParticlePacketQueue(viewer);
+            this.packetQueues.put(viewer, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Sends all queued particle packets to the viewers
+     * 
+     * @param limited whether to limit the number of packets sent per viewer, deferring the rest
+     * @return number of packets sent
+     */
+    public int flushPackets(boolean limited) {
+        int numSent = 0;
+        Iterator<TrackParticlePacketQueue> iter = this.packetQueues.values().iterator();
+        while (iter.hasNext()) {
+            TrackParticlePacketQueue queue = iter.next();
+            if (queue.getViewer().isOnline()) {
+                numSent += queue.flush(limited);
+            } else {
+                queue.clear();
+            }
+            if (queue.isEmpty()) {
+                iter.remove();
+            }
+        }
+        return numSent;
+    }
+
+    /**
+     * Gets the slot of a viewer. Every viewer of this world is assigned a small unique number,
+     * used by particles to keep track of who can see them.
+     * This method is safe to call from the network thread.
+     * 
+     * @param viewer
+     * @return viewer slot, -1 if the player is not a viewer
+     */
+    public int getViewerSlot(Player viewer) {
+        Player[] slots = this.viewerSlots;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == viewer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the viewer assigned to a slot
+     * 
+     * @param slot
+     * @return viewer
+     */
+    public Player getViewer(int slot) {
+        return this.viewerSlots[slot];
+    }
+
+    /**
+     * Gets the position from which the visibility of particles was last updated for a viewer
+     * 
+     * @param slot of the viewer
+     * @return viewer position, null if there is no viewer with this slot or it is not viewing
+     */
+    public Vector getViewerPosition(int slot) {
+        Player[] slots = this.viewerSlots;
+        if (slot >= slots.length || slots[slot] == null) {
+            return null;
+        }
+        ViewerState state = this.viewers.get(slots[slot]);
+        return (state == null || state.region == null) ? null : state.position;
+    }
+
+    /**
+     * Gets the number of 64-bit words particles need to store one bit for every viewer slot
+     * 
+     * @return number of words, at least 1
+     */
+    public int getViewerSlotWords() {
+        return Math.max(1, (this.viewerSlots.length + 63) >> 6);
+    }
+
+    private int allocateViewerSlot(Player viewer) {
+        Player[] slots = this.viewerSlots;
+        int slot = 0;
+        while (slot < slots.length && slots[slot] != null) {
+            slot++;
+        }
+        Player[] newSlots = Arrays.copyOf(slots, Math.max(slots.length, slot + 1));
+        newSlots[slot] = viewer;
+        this.viewerSlots = newSlots;
+        return slot;
+    }
+
+    // Frees a slot of a viewer that is gone, making sure no particle still refers to it
+    private void releaseViewerSlot(int slot) {
         for (TrackParticle particle : this.particles) {
-            particle.updateAppearance();
+            particle.clearViewerSlot(slot);
         }
+        Player[] newSlots = this.viewerSlots.clone();
+        newSlots[slot] = null;
+        this.viewerSlots = newSlots;
     }
 
-    public void update(Player viewer) {
-        boolean viewerSeesWorld = (viewer.getWorld() == this.getWorld() &&
-                this.getPlugin().getEditState(viewer).getMode() != PlayerEditState.Mode.DISABLED);
+    /**
+     * Checks whether a player is on this world and in a mode in which track particles are displayed
+     * 
+     * @param viewer
+     * @return True if the viewer can see the particles of this world
+     */
+    public boolean isViewing(Player viewer) {
+        return viewer.getWorld() == this.getWorld() &&
+               this.getPlugin().getEditState(viewer).getMode() != PlayerEditState.Mode.DISABLED;
+    }
 
-        if (viewerSeesWorld) {
+    public void update(Player viewer) {
+        if (this.isViewing(viewer)) {
             this.players = this.players.add(viewer);
 
+            ViewerState state = this.viewers.get(viewer);
+            if (state == null) {
+                state = new ViewerState(this.allocateViewerSlot(viewer));
+                this.viewers.put(viewer, state);
+            }
+
+            // Refresh whether particles are nearby, for use by the network thread
             Vector pos = viewer.getEyeLocation().toVector();
-            for (TrackParticle particle : this.particles) {
-                particle.updateFor(viewer, pos);
+            boolean nearby = this.findParticleNearby(pos);
+            if (nearby != this.playersNearParticles.contains(viewer)) {
+                this.playersNearParticles = this.playersNearParticles.addOrRemove(viewer, nearby);
+            }
+
+            // When the viewer barely moved since the last time, only update the particles that changed
+            if (state.region != null && state.position.distanceSquared(pos) < (VIEWER_MOVE_THRESHOLD * VIEWER_MOVE_THRESHOLD)) {
+                for (TrackParticle particle : this.visibilityChangedParticles) {
+                    if (particle.cell != null && state.region.contains(particle.cell)) {
+                        state.update(viewer, particle);
+                    }
+                }
+                return;
             }
+
+            // Only visit the cells within the largest view radius of the viewer
+            // Cells that were visited the previous time, but are now out of range, are hidden
+            // The pending spawns are re-prioritized from the new position
+            CellRegion region = CellRegion.around(pos, this.maxViewDistance + CELL_SIZE);
+            CellRegion oldRegion = state.region;
+            state.clearPendingSpawns();
+            state.region = region;
+            state.position = pos;
+            state.direction = viewer.getEyeLocation().getDirection();
+            this.updateCells(viewer, state, region, oldRegion);
         } else if (this.players.contains(viewer)) {
             this.players = this.players.remove(viewer);
+            this.playersNearParticles = this.playersNearParticles.remove(viewer);
+
+            // Despawns all particles over the ticks that follow, after which the state is removed
+            ViewerState state = this.viewers.get(viewer);
+            if (state != null) {
+                CellRegion oldRegion = state.region;
+                state.clearPendingSpawns();
+                state.region = null;
+                this.updateCells(viewer, state, null, oldRegion);
+            }
+        }
+    }
+
+    /**
+     * Called by particles when they allocate a new entity id
+     * 
+     * @param particle
+     * @param entityId
+     */
+    protected void registerEntityId(TrackParticle particle, int entityId) {
+        this.particlesByEntityId.put(entityId, particle);
+    }
+
+    /**
+     * Gets an unused entity id, re-using the ids of particles that were removed
+     * 
+     * @return entity id
+     */
+    protected int allocateEntityId() {
+        Integer entityId = this.freeEntityIds.poll();
+        return (entityId != null) ? entityId.intValue() : EntityUtil.getUniqueEntityId();
+    }
+
+    // Makes the entity ids of a removed particle available again
+    // The destroy packets of the particle are queued before any packets of a particle re-using the ids
+    private void releaseEntityIds(TrackParticle particle) {
+        for (int entityId : particle.entityIds) {
+            this.particlesByEntityId.remove(entityId);
+            this.freeEntityIds.add(entityId);
+        }
+        particle.entityIds = TrackParticle.NO_ENTITY_IDS;
+    }
 
-            for (TrackParticle particle : this.particles) {
+    /**
+     * Called by particles when their position changes, to move them to the right cell.
+     * When the particle moves out of range of any of its viewers, it is hidden for them.
+     * 
+     * @param particle
+     */
+    protected void updateCell(TrackParticle particle) {
+        markVisibilityChanged(particle);
+
+        IntVector3 newCell = getCell(particle.getCellPosition());
+        if (newCell.equals(particle.cell)) {
+            return;
+        }
+
+        removeFromCell(particle.cell, particle);
+        particle.cell = newCell;
+        addToCell(newCell, particle);
+
+        for (int slot = particle.nextViewerSlot(0); slot != -1; slot = particle.nextViewerSlot(slot + 1)) {
+            Player viewer = this.getViewer(slot);
+            ViewerState state = this.viewers.get(viewer);
+            if (state == null || state.region == null || !state.region.contains(newCell)) {
                 particle.updateFor(viewer, null);
             }
         }
     }
 
     /**
-     * Checks whether a particular entity Id is a particle a player can see
+     * Called by particles when their appearance changes, to update them at the end of the tick
+     * 
+     * @param particle
+     */
+    protected void scheduleUpdateAppearance(TrackParticle particle) {
+        if (!particle.appearanceChanged) {
+            particle.appearanceChanged = true;
+            this.appearanceChangedParticles.add(particle);
+        }
+    }
+
+    /**
+     * Called by line levels of detail when the levels viewers need may have changed,
+     * to create or remove lines after the visibility of the particles is updated
+     * 
+     * @param detail
+     */
+    protected void scheduleUpdateLevels(TrackParticleLineDetail detail) {
+        if (!detail.levelsChanged) {
+            detail.levelsChanged = true;
+            this.levelsChangedDetails.add(detail);
+        }
+    }
+
+    // Schedules a particle to have its visibility re-evaluated for all viewers the next update
+    protected void markVisibilityChanged(TrackParticle particle) {
+        if (!particle.visibilityChanged) {
+            particle.visibilityChanged = true;
+            this.visibilityChangedParticles.add(particle);
+        }
+    }
+
+    // Updates visibility of all particles inside the new region, and hides particles inside the old region
+    private void updateCells(Player viewer, ViewerState state, CellRegion newRegion, CellRegion oldRegion) {
+        int volume = 0;
+        if (newRegion != null) {
+            volume += newRegion.volume();
+        }
+        if (oldRegion != null) {
+            volume += oldRegion.volume();
+        }
+
+        if (this.cells.size() <= volume) {
+            // Fewer non-empty cells exist than there are cells in range, iterate all of them
+            for (Map.Entry<IntVector3, List<TrackParticle>> entry : this.cells.entrySet()) {
+                IntVector3 cell = entry.getKey();
+                if (newRegion != null && newRegion.contains(cell)) {
+                    updateParticles(viewer, state, entry.getValue());
+                } else if (oldRegion != null && oldRegion.contains(cell)) {
+                    updateParticles(viewer, state, entry.getValue());
+                }
+            }
+        } else {
+            // Look up the cells in range of the viewer
+            if (newRegion != null) {
+                for (int x = newRegion.minX; x <= newRegion.maxX; x++) {
+                    for (int y = newRegion.minY; y <= newRegion.maxY; y++) {
+                        for (int z = newRegion.minZ; z <= newRegion.maxZ; z++) {
+                            updateParticles(viewer, state, this.cells.get(new IntVector3(x, y, z)));
+                        }
+                    }
+                }
+            }
+            if (oldRegion != null) {
+                for (int x = oldRegion.minX; x <= oldRegion.maxX; x++) {
+                    for (int y = oldRegion.minY; y <= oldRegion.maxY; y++) {
+                        for (int z = oldRegion.minZ; z <= oldRegion.maxZ; z++) {
+                            if (newRegion == null || !newRegion.contains(x, y, z)) {
+                                updateParticles(viewer, state, this.cells.get(new IntVector3(x, y, z)));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void updateParticles(Player viewer, ViewerState state, List<TrackParticle> cellParticles) {
+        if (cellParticles != null) {
+            for (TrackParticle particle : cellParticles) {
+                state.update(viewer, particle);
+            }
+        }
+    }
+
+    private void addToCell(IntVector3 cell, TrackParticle particle) {
+        List<TrackParticle> cellParticles = this.cells.get(cell);
+        if (cellParticles == null) {
+            cellParticles = new ArrayList<TrackParticle>();
+            this.cells.put(cell, cellParticles);
+        }
+        cellParticles.add(particle);
+    }
+
+    private void removeFromCell(IntVector3 cell, TrackParticle particle) {
+        List<TrackParticle> cellParticles = this.cells.get(cell);
+        if (cellParticles != null && cellParticles.remove(particle) && cellParticles.isEmpty()) {
+            this.cells.remove(cell);
+        }
+    }
+
+    private static IntVector3 getCell(Vector position) {
+        return new IntVector3(MathUtil.floor(position.getX()) >> CELL_BITS,
+                              MathUtil.floor(position.getY()) >> CELL_BITS,
+                              MathUtil.floor(position.getZ()) >> CELL_BITS);
+    }
+
+    /**
+     * Checks whether a particular entity Id is a particle a player can see.
+     * This method is safe to call from the network thread.
      * 
      * @param viewer
      * @param entityId
      * @return True if the entityId is that of a particle
      */
     public boolean isParticle(Player viewer, int entityId) {
-        if (this.players.contains(viewer)) {
-            for (TrackParticle particle : this.particles) {
-                if (particle.getViewers().contains(viewer) && particle.usesEntityId(entityId)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        TrackParticle particle = this.particlesByEntityId.get(entityId);
+        return particle != null && particle.isViewer(viewer);
     }
 
     /**
      * Checks whether a particle is nearby the player somewhere.
      * This is used as a check when fixing interaction with blocks.
+     * The result is refreshed every tick, and this method is safe to call from the network thread.
      * 
      * @param viewer
      * @return True if a particle is nearby
      */
     public boolean isParticleNearby(Player viewer) {
-        if (this.players.contains(viewer)) {
-            Vector pos = viewer.getEyeLocation().toVector();
-            for (TrackParticle particle : this.particles) {
-                if (particle.isNearby(pos)) {
-                    return true;
+        return this.playersNearParticles.contains(viewer);
+    }
+
+    // Looks up the few cells around a position to find whether any particles are nearby
+    private boolean findParticleNearby(Vector position) {
+        CellRegion region = CellRegion.around(position, TrackParticle.NEARBY_DISTANCE + CELL_SIZE);
+        for (int x = region.minX; x <= region.maxX; x++) {
+            for (int y = region.minY; y <= region.maxY; y++) {
+                for (int z = region.minZ; z <= region.maxZ; z++) {
+                    List<TrackParticle> cellParticles = this.cells.get(new IntVector3(x, y, z));
+                    if (cellParticles != null) {
+                        for (TrackParticle particle : cellParticles) {
+                            if (particle.isNearby(position)) {
+                                return true;
+                            }
+                        }
+                    }
                 }
             }
         }
         return false;
     }
+
+    // Per-viewer state of what cells of the grid were last updated, and from what position
+    // Also stores the particles waiting to be spawned or despawned for the viewer
+    private static class ViewerState {
+        public final int slot;
+        public CellRegion region = null;
+        public Vector position = null;
+        public Vector direction = null;
+        public int visited = 0;
+        private final PriorityQueue<PendingSpawn> pendingSpawns = new PriorityQueue<PendingSpawn>();
+        private final Set<TrackParticle> pendingSpawnSet = new HashSet<TrackParticle>();
+        private final ArrayDeque<TrackParticle> pendingDespawns = new ArrayDeque<TrackParticle>();
+        private final Set<TrackParticle> pendingDespawnSet = new HashSet<TrackParticle>();
+
+        public ViewerState(int slot) {
+            this.slot = slot;
+        }
+
+        // Schedules a particle to be spawned or despawned, based on whether it is visible to the viewer
+        public void update(Player viewer, TrackParticle particle) {
+            this.visited++;
+            if (this.isVisible(viewer, particle)) {
+                if (!particle.isViewerSlot(this.slot) && this.pendingSpawnSet.add(particle)) {
+                    this.pendingSpawns.add(new PendingSpawn(particle, this.getPriority(particle)));
+                }
+            } else if (particle.isViewerSlot(this.slot) && this.pendingDespawnSet.add(particle)) {
+                this.pendingDespawns.add(particle);
+            }
+        }
+
+        public boolean hasPending() {
+            return !this.pendingSpawns.isEmpty() || !this.pendingDespawns.isEmpty();
+        }
+
+        public void clearPendingSpawns() {
+            this.pendingSpawns.clear();
+            this.pendingSpawnSet.clear();
+        }
+
+        // Spawns and despawns pending particles, re-checking that it is still required
+        public void processPending(Player viewer, int spawnBudget, int despawnBudget) {
+            if (!this.hasPending()) {
+                return;
+            }
+
+            TrackEvent event = TrackEventType.PARTICLE_SPAWN.begin();
+            int numDespawned = 0;
+            TrackParticle particle;
+            while (numDespawned < despawnBudget && (particle = this.pendingDespawns.poll()) != null) {
+                this.pendingDespawnSet.remove(particle);
+                if (particle.isViewerSlot(this.slot) && !this.isVisible(viewer, particle)) {
+                    particle.updateFor(viewer, null);
+                    numDespawned++;
+                }
+            }
+
+            int numSpawned = 0;
+            PendingSpawn pending;
+            while (numSpawned < spawnBudget && (pending = this.pendingSpawns.poll()) != null) {
+                particle = pending.particle;
+                this.pendingSpawnSet.remove(particle);
+                if (!particle.isViewerSlot(this.slot) && this.isVisible(viewer, particle)) {
+                    particle.updateFor(viewer, this.position);
+                    numSpawned++;
+                }
+            }
+
+            event.set(0, viewer.getName()).set(1, numSpawned).set(2, numDespawned)
+                 .set(3, this.pendingSpawns.size() + this.pendingDespawns.size()).commit();
+        }
+
+        private boolean isVisible(Player viewer, TrackParticle particle) {
+            return this.region != null && particle.cell != null &&
+                   this.region.contains(particle.cell) &&
+                   viewer.getWorld() == particle.getWorld().getWorld() &&
+                   particle.isVisible(this.slot, this.position);
+        }
+
+        // Particles close by and in front of the viewer are spawned first
+        private double getPriority(TrackParticle particle) {
+            Vector cellPos = particle.getCellPosition();
+            double dx = cellPos.getX() - this.position.getX();
+            double dy = cellPos.getY() - this.position.getY();
+            double dz = cellPos.getZ() - this.position.getZ();
+            double distSq = dx * dx + dy * dy + dz * dz;
+            if (distSq < 1e-10) {
+                return 0.0;
+            }
+            double dot = (dx * this.direction.getX() + dy * this.direction.getY() + dz * this.direction.getZ()) / Math.sqrt(distSq);
+            return particle.distanceSquared(this.position) * (2.0 - dot);
+        }
+    }
+
+    // A particle waiting to be spawned for a viewer, with the lowest priority value spawned first
+    private static class PendingSpawn implements Comparable<PendingSpawn> {
+        public final TrackParticle particle;
+        public final double priority;
+
+        public PendingSpawn(TrackParticle particle, double priority) {
+            this.particle = particle;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(PendingSpawn o) {
+            return Double.compare(this.priority, o.priority);
+        }
+    }
+
+    // A cuboid area of cells of the spatial grid
+    private static class CellRegion {
+        public final int minX, minY, minZ;
+        public final int maxX, maxY, maxZ;
+
+        public CellRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.minX = minX; this.minY = minY; this.minZ = minZ;
+            this.maxX = maxX; this.maxY = maxY; this.maxZ = maxZ;
+        }
+
+        public boolean contains(IntVector3 cell) {
+            return contains(cell.x, cell.y, cell.z);
+        }
+
+        public boolean contains(int x, int y, int z) {
+            return x >= minX && y >= minY && z >= minZ && x <= maxX && y <= maxY && z <= maxZ;
+        }
+
+        public int volume() {
+            return (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        }
+
+        public static CellRegion around(Vector position, double radius) {
+            return new CellRegion(MathUtil.floor(position.getX() - radius) >> CELL_BITS,
+                                  MathUtil.floor(position.getY() - radius) >> CELL_BITS,
+                                  MathUtil.floor(position.getZ() - radius) >> CELL_BITS,
+                                  MathUtil.floor(position.getX() + radius) >> CELL_BITS,
+                                  MathUtil.floor(position.getY() + radius) >> CELL_BITS,
+                                  MathUtil.floor(position.getZ() + radius) >> CELL_BITS);
+        }
+    }
 }
@@ -1,22 +1,22 @@
 package com.bergerkiller.bukkit.coasters.rails;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import org.bukkit.block.Block;
 import org.bukkit.util.Vector;
 
+import com.bergerkiller.bukkit.coasters.core.BlockIndex;
+import com.bergerkiller.bukkit.coasters.stats.TrackEvent;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
 import com.bergerkiller.bukkit.coasters.tracks.TrackCoaster;
 import com.bergerkiller.bukkit.coasters.tracks.TrackConnection;
 import com.bergerkiller.bukkit.coasters.tracks.TrackNode;
 import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
 import com.bergerkiller.bukkit.common.bases.IntVector3;
-import com.bergerkiller.bukkit.common.utils.LogicUtil;
 import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.bergerkiller.bukkit.tc.controller.components.RailPath;
 
@@ -24,8 +24,11 @@ import com.bergerkiller.bukkit.tc.controller.components.RailPath;
  * Tracks the lookup of rails information from block positions on a single world
  */
 public class TrackRailsWorld extends CoasterWorldAccess.Component {
-    private final Map<IntVector3, List<TrackRailsSection>> sectionsByRails = new HashMap<IntVector3, List<TrackRailsSection>>();
-    private final Map<IntVector3, List<TrackRailsSection>> sectionsByBlock = new HashMap<IntVector3, List<TrackRailsSection>>();
+    private final BlockIndex<TrackRailsSection> sectionsByRails = new BlockIndex<TrackRailsSection>();
+    private final BlockIndex<TrackRailsSection> sectionsByBlock = new BlockIndex<TrackRailsSection>();
+    // Block coordinates covered by a section, as x/y/z triplets, re-used between sections
+    private int[] blockBuffer = new int[3 * 64];
+    private int blockBufferSize = 0;
 
     public TrackRailsWorld(CoasterWorldAccess world) {
         super(world);
@@ -37,27 +40,35 @@ public class TrackRailsWorld extends CoasterWorldAccess.Component {
     }
 
     public List<TrackRailsSection> findAtBlock(Block block) {
-        return LogicUtil.fixNull(sectionsByBlock.get(new IntVector3(block)), Collections.<TrackRailsSection>emptyList());
+        return sectionsByBlock.get(block.getX(), block.getY(), block.getZ());
+    }
+
+    public List<TrackRailsSection> findAtBlock(int x, int y, int z) {
+        return sectionsByBlock.get(x, y, z);
     }
 
     public List<TrackRailsSection> findAtRails(Block railsBlock) {
-        return LogicUtil.fixNull(sectionsByRails.get(new IntVector3(railsBlock)), Collections.<TrackRailsSection>emptyList());
+        return sectionsByRails.get(railsBlock.getX(), railsBlock.getY(), railsBlock.getZ());
     }
 
     public List<TrackRailsSection> findAtRails(int x, int y, int z) {
-        return LogicUtil.fixNull(sectionsByRails.get(new IntVector3(x, y, z)), Collections.<TrackRailsSection>emptyList());
+        return sectionsByRails.get(x, y, z);
     }
 
     /**
      * Rebuilds all the rail information
      */
     public void rebuild() {
+        TrackEvent event = TrackEventType.RAILS_REBUILD.begin();
         clear();
+        int numNodes = 0;
         for (TrackCoaster coaster : getTracks().getCoasters()) {
             for (TrackNode node : coaster.getNodes()) {
                 store(node);
             }
+            numNodes += coaster.getNodes().size();
         }
+        event.set(0, numNodes).set(1, true).commit();
     }
 
     /**
@@ -74,9 +85,15 @@ public class TrackRailsWorld extends CoasterWorldAccess.Component {
      * 
      * @param nodes
      */
-    public void purge(Collection<TrackNode> nodes) {
-        removeFromMap(sectionsByRails, nodes);
-        removeFromMap(sectionsByBlock, nodes);
+    public void purge(final Collection<TrackNode> nodes) {
+        BlockIndex.Filter<TrackRailsSection> filter = new BlockIndex.Filter<TrackRailsSection>() {
+            @Override
+            public boolean matches(TrackRailsSection section) {
+                return nodes.contains(section.node);
+            }
+        };
+        sectionsByRails.removeIf(filter);
+        sectionsByBlock.removeIf(filter);
     }
 
     public void store(TrackNode node) {
@@ -107,10 +124,61 @@ public class TrackRailsWorld extends CoasterWorldAccess.Component {
         }
     }
 
+    /**
+     * Gets all the rails sections stored for a node
+     * 
+     * @param node
+     * @return sections of the node
+     */
+    public List<TrackRailsSection> getSections(TrackNode node) {
+        IntVector3 railsBlock = node.getRailsBlock();
+        List<TrackRailsSection> sections = new ArrayList<TrackRailsSection>(2);
+        for (TrackRailsSection section : sectionsByRails.get(railsBlock.x, railsBlock.y, railsBlock.z)) {
+            if (section.node == node) {
+                sections.add(section);
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Gets the coordinates of the blocks covered by the path of a rails section,
+     * as they are stored by {@link #store(TrackNode)}
+     * 
+     * @param section
+     * @return block x/y/z coordinate triplets
+     */
+    public int[] getBlocks(TrackRailsSection section) {
+        collectBlocks(section);
+        return Arrays.copyOf(this.blockBuffer, this.blockBufferSize);
+    }
+
+    /**
+     * Stores a rails section of which the covered blocks were computed before,
+     * instead of computing them again
+     * 
+     * @param section to store
+     * @param blocks returned by {@link #getBlocks(TrackRailsSection)}
+     */
+    public void restore(TrackRailsSection section, int[] blocks) {
+        addSectionToMap(section, blocks, blocks.length);
+    }
+
     private final void addSectionToMap(TrackRailsSection section) {
-        addToMap(sectionsByRails, section.rails, section);
+        collectBlocks(section);
+        addSectionToMap(section, this.blockBuffer, this.blockBufferSize);
+    }
 
-        // For all segments of the path, store the block positions being covered in the lookup table
+    private final void addSectionToMap(TrackRailsSection section, int[] blocks, int numBlockCoords) {
+        sectionsByRails.add(section.rails.x, section.rails.y, section.rails.z, section);
+        for (int i = 0; i < numBlockCoords; i += 3) {
+            sectionsByBlock.add(blocks[i], blocks[i + 1], blocks[i + 2], section);
+        }
+    }
+
+    // Fills the block buffer with the block positions covered by all segments of the path
+    private final void collectBlocks(TrackRailsSection section) {
+        this.blockBufferSize = 0;
         for (RailPath.Segment segment : section.path.getSegments()) {
             double x = section.rails.x + segment.p0.x;
             double y = section.rails.y + segment.p0.y;
@@ -121,65 +189,34 @@ public class TrackRailsWorld extends CoasterWorldAccess.Component {
             }
 
             if (numSteps == 1) {
-                addToMap(sectionsByBlock, new IntVector3(x, y, z), section);
+                addBlock(MathUtil.floor(x), MathUtil.floor(y), MathUtil.floor(z));
             } else {
-                IntVector3 last_pos = null;
+                long last_key = 0;
                 for (int i = 0; i < numSteps; i++) {
                     double m = (double) i / (double) numSteps;
-                    IntVector3 pos = new IntVector3(x + m * segment.dt.x,
-                                                    y + m * segment.dt.y,
-                                                    z + m * segment.dt.z);
-                    if (!pos.equals(last_pos)) {
-                        last_pos = pos;
-                        addToMap(sectionsByBlock, pos, section);
+                    int bx = MathUtil.floor(x + m * segment.dt.x);
+                    int by = MathUtil.floor(y + m * segment.dt.y);
+                    int bz = MathUtil.floor(z + m * segment.dt.z);
+                    long key = BlockIndex.key(bx, by, bz);
+                    if (i == 0 || key != last_key) {
+                        last_key = key;
+                        addBlock(bx, by, bz);
                     }
                 }
             }
-            addToMap(sectionsByBlock, new IntVector3(
-                    section.rails.x + segment.p1.x,
-                    section.rails.y + segment.p1.y,
-                    section.rails.z + segment.p1.z), section);
+            addBlock(MathUtil.floor(section.rails.x + segment.p1.x),
+                     MathUtil.floor(section.rails.y + segment.p1.y),
+                     MathUtil.floor(section.rails.z + segment.p1.z));
         }
     }
 
-    private static void removeFromMap(Map<IntVector3, List<TrackRailsSection>> map, Collection<TrackNode> nodes) {
-        Iterator<List<TrackRailsSection>> iter = map.values().iterator();
-        while (iter.hasNext()) {
-            List<TrackRailsSection> sections = iter.next();
-            if (sections.size() > 1) {
-                // List is an ArrayList - simply remove entries that should be removed
-                for (int i = sections.size() - 1; i >= 0; i--) {
-                    if (nodes.contains(sections.get(i).node)) {
-                        sections.remove(i);
-                    }
-                }
-                if (sections.isEmpty()) {
-                    iter.remove();
-                }
-            } else if (sections.isEmpty() || nodes.contains(sections.get(0).node)) {
-                // Easy handling of already-empty lists or lists storing only one section that should be removed
-                iter.remove();
-            }
-        }
-    }
-
-    private static boolean addToMap(Map<IntVector3, List<TrackRailsSection>> map, IntVector3 key, TrackRailsSection section) {
-        List<TrackRailsSection> list = map.get(key);
-        if (list == null) {
-            map.put(key, Collections.singletonList(section));
-            //System.out.println("SINGLETRACK AT " + key);
-            return true;
-        } else if (!list.contains(section)) {
-            if (list.size() == 1) {
-                // Make mutable
-                list = new ArrayList<TrackRailsSection>(list);
-                map.put(key, list);
-            }
-            list.add(section);
-            return true;
-        } else {
-            return false;
+    private final void addBlock(int x, int y, int z) {
+        if (this.blockBufferSize + 3 > this.blockBuffer.length) {
+            this.blockBuffer = Arrays.copyOf(this.blockBuffer, this.blockBuffer.length * 2);
         }
+        this.blockBuffer[this.blockBufferSize++] = x;
+        this.blockBuffer[this.blockBufferSize++] = y;
+        this.blockBuffer[this.blockBufferSize++] = z;
     }
 
     /*
@@ -0,0 +1,237 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accesses the Java Flight Recorder API (jdk.jfr) through reflection, as the plugin
+ * also runs on Java versions that do not have it. Event types are created using the
+ * EventFactory, and a listener keeps track of whether any recording is running,
+ * so that no events are created otherwise.
+ */
+final class FlightRecorderAccess {
+    private static final String CATEGORY = "TC-Coasters";
+    private static volatile boolean available = false;
+    private static volatile boolean recording = false;
+    private static Constructor<?> annotationElementConstructor;
+    private static Constructor<?> valueDescriptorConstructor;
+    private static Class<?> nameAnnotation;
+    private static Class<?> labelAnnotation;
+    private static Class<?> categoryAnnotation;
+    private static Method eventFactoryCreate;
+    private static Method eventFactoryNewEvent;
+    private static Method eventBegin;
+    private static Method eventSet;
+    private static Method eventCommit;
+    private static Method flightRecorderGet;
+    private static Method flightRecorderGetRecordings;
+    private static Method recordingGetState;
+    private static Object recordingStateRunning;
+    private static Method flightRecorderRemoveListener;
+    private static Object listener;
+
+    static {
+        try {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+            Class<?> recordingStateClass = Class.forName("jdk.jfr.RecordingState");
+
+            annotationElementConstructor = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptorConstructor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            nameAnnotation = Class.forName("jdk.jfr.Name");
+            labelAnnotation = Class.forName("jdk.jfr.Label");
+            categoryAnnotation = Class.forName("jdk.jfr.Category");
+            eventFactoryCreate = eventFactoryClass.getMethod("create", List.class, List.class);
+            eventFactoryNewEvent = eventFactoryClass.getMethod("newEvent");
+            eventBegin = eventClass.getMethod("begin");
+            eventSet = eventClass.getMethod("set", int.class, Object.class);
+            eventCommit = eventClass.getMethod("commit");
+            flightRecorderGet = flightRecorderClass.getMethod("getFlightRecorder");
+            flightRecorderGetRecordings = flightRecorderClass.getMethod("getRecordings");
+            recordingGetState = recordingClass.getMethod("getState");
+            recordingStateRunning = recordingStateClass.getField("RUNNING").get(null);
+
+            // Keep track of when recordings start and stop
+            flightRecorderRemoveListener = flightRecorderClass.getMethod("removeListener", listenerClass);
+            listener = Proxy.newProxyInstance(FlightRecorderAccess.class.getClassLoader(),
+                    new Class<?>[] {listenerClass}, new RecordingListener());
+            flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+
+            available = true;
+            if (((Boolean) flightRecorderClass.getMethod("isInitialized").invoke(null)).booleanValue()) {
+                updateRecording(flightRecorderGet.invoke(null));
+            }
+        } catch (Throwable t) {
+            // Flight recorder is not available on this JVM
+            available = false;
+            recording = false;
+        }
+    }
+
+    private FlightRecorderAccess() {
+    }
+
+    /**
+     * Gets whether the flight recorder is available and currently recording
+     * 
+     * @return True if recording
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Creates and registers a new type of event
+     * 
+     * @param name of the event type
+     * @param label of the event type
+     * @param fieldNames names of the fields of the event
+     * @param fieldTypes types of the fields of the event
+     * @return EventFactory of the event type, null if this failed
+     */
+    public static Object createFactory(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+        if (!available) {
+            return null;
+        }
+        try {
+            List<Object> annotations = new ArrayList<Object>(3);
+            annotations.add(annotationElementConstructor.newInstance(nameAnnotation, "tccoasters." + name));
+            annotations.add(annotationElementConstructor.newInstance(labelAnnotation, label));
+            annotations.add(annotationElementConstructor.newInstance(categoryAnnotation, new String[] {CATEGORY}));
+            List<Object> fields = new ArrayList<Object>(fieldNames.length);
+            for (int i = 0; i < fieldNames.length; i++) {
+                fields.add(valueDescriptorConstructor.newInstance(fieldTypes[i], fieldNames[i]));
+            }
+            return eventFactoryCreate.invoke(null, annotations, fields);
+        } catch (Throwable t) {
+            disable();
+            return null;
+        }
+    }
+
+    /**
+     * Creates and begins a new event
+     * 
+     * @param factory created using {@link #createFactory(String, String, String[], Class[])}
+     * @return event
+     */
+    public static TrackEvent begin(Object factory) {
+        try {
+            Object event = eventFactoryNewEvent.invoke(factory);
+            eventBegin.invoke(event);
+            return new RecordedEvent(event);
+        } catch (Throwable t) {
+            disable();
+            return TrackEvent.NONE;
+        }
+    }
+
+    /**
+     * Stops using the flight recorder and removes the listener registered with it.
+     * The listener would otherwise keep the plugin's classes loaded after the plugin is disabled.
+     */
+    public static synchronized void shutdown() {
+        disable();
+        if (listener != null) {
+            try {
+                flightRecorderRemoveListener.invoke(null, listener);
+            } catch (Throwable t) {
+                // Nothing more can be done
+            }
+            listener = null;
+        }
+    }
+
+    // Stops using the flight recorder after an unexpected error occurred
+    private static void disable() {
+        available = false;
+        recording = false;
+    }
+
+    private static void updateRecording(Object flightRecorder) throws Exception {
+        boolean running = false;
+        for (Object rec : (List<?>) flightRecorderGetRecordings.invoke(flightRecorder)) {
+            if (recordingGetState.invoke(rec) == recordingStateRunning) {
+                running = true;
+                break;
+            }
+        }
+        recording = running && available;
+    }
+
+    // Implements the FlightRecorderListener interface
+    private static class RecordingListener implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("recorderInitialized")) {
+                updateRecording(args[0]);
+            } else if (name.equals("recordingStateChanged")) {
+                updateRecording(flightRecorderGet.invoke(null));
+            } else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (name.equals("toString")) {
+                return "TC-Coasters flight recorder listener";
+            }
+            return null;
+        }
+    }
+
+    // An event created by the flight recorder
+    private static class RecordedEvent extends TrackEvent {
+        private final Object event;
+
+        public RecordedEvent(Object event) {
+            this.event = event;
+        }
+
+        @Override
+        public boolean isRecorded() {
+            return true;
+        }
+
+        @Override
+        public TrackEvent set(int index, long value) {
+            return this.setValue(index, Long.valueOf(value));
+        }
+
+        @Override
+        public TrackEvent set(int index, boolean value) {
+            return this.setValue(index, Boolean.valueOf(value));
+        }
+
+        @Override
+        public TrackEvent set(int index, String value) {
+            return this.setValue(index, value);
+        }
+
+        private TrackEvent setValue(int index, Object value) {
+            try {
+                eventSet.invoke(this.event, index, value);
+            } catch (Throwable t) {
+                disable();
+            }
+            return this;
+        }
+
+        @Override
+        public void commit() {
+            try {
+                eventCommit.invoke(this.event);
+            } catch (Throwable t) {
+                disable();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+/**
+ * An event of a {@link TrackEventType} that is recorded by the Java Flight Recorder.
+ * The duration of the event is from when it was begun until it is committed.
+ * While nothing is being recorded the {@link #NONE} event is used, which does nothing.
+ */
+public class TrackEvent {
+    /**
+     * Event that does nothing
+     */
+    public static final TrackEvent NONE = new TrackEvent();
+
+    protected TrackEvent() {
+    }
+
+    /**
+     * Gets whether this event is recorded. When it is not, values set do not have to be computed.
+     * 
+     * @return True if recorded, False if this is the {@link #NONE} event
+     */
+    public boolean isRecorded() {
+        return false;
+    }
+
+    /**
+     * Sets the value of a field of this event
+     * 
+     * @param index of the field, in the order the fields were declared
+     * @param value to set to
+     * @return this event
+     */
+    public TrackEvent set(int index, long value) {
+        return this;
+    }
+
+    /**
+     * Sets the value of a field of this event
+     * 
+     * @param index of the field, in the order the fields were declared
+     * @param value to set to
+     * @return this event
+     */
+    public TrackEvent set(int index, boolean value) {
+        return this;
+    }
+
+    /**
+     * Sets the value of a field of this event
+     * 
+     * @param index of the field, in the order the fields were declared
+     * @param value to set to
+     * @return this event
+     */
+    public TrackEvent set(int index, String value) {
+        return this;
+    }
+
+    /**
+     * Ends this event and writes it to the recording
+     */
+    public void commit() {
+    }
+}
@@ -0,0 +1,78 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+/**
+ * A type of Java Flight Recorder event emitted by TC-Coasters. The event types are only
+ * registered with the flight recorder once something is being recorded, and events
+ * are only created while recording.
+ */
+public class TrackEventType {
+    public static final TrackEventType NODE_REFRESH = new TrackEventType("NodeRefresh", "Node Refresh",
+            new String[] {"nodes", "connections"},
+            new Class<?>[] {long.class, long.class});
+    public static final TrackEventType RAILS_REBUILD = new TrackEventType("RailsRebuild", "Rails Rebuild",
+            new String[] {"nodes", "full"},
+            new Class<?>[] {long.class, boolean.class});
+    public static final TrackEventType COASTER_LOAD = new TrackEventType("CoasterLoad", "Coaster Load",
+            new String[] {"coaster", "bytes", "nodes"},
+            new Class<?>[] {String.class, long.class, long.class});
+    public static final TrackEventType COASTER_SAVE = new TrackEventType("CoasterSave", "Coaster Save",
+            new String[] {"coaster", "bytes", "nodes"},
+            new Class<?>[] {String.class, long.class, long.class});
+    public static final TrackEventType PARTICLE_SPAWN = new TrackEventType("ParticleSpawn", "Particle Spawn Burst",
+            new String[] {"viewer", "spawned", "despawned", "pending"},
+            new Class<?>[] {String.class, long.class, long.class, long.class});
+    public static final TrackEventType PACKET_LOOKUP = new TrackEventType("PacketLookup", "Packet Handler Lookup",
+            new String[] {"packet", "particle"},
+            new Class<?>[] {String.class, boolean.class});
+    private final String name;
+    private final String label;
+    private final String[] fieldNames;
+    private final Class<?>[] fieldTypes;
+    private volatile Object factory = null;
+
+    private TrackEventType(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+        this.name = name;
+        this.label = label;
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Begins a new event of this type. If the flight recorder is not recording,
+     * {@link TrackEvent#NONE} is returned.
+     * 
+     * @return event
+     */
+    public TrackEvent begin() {
+        if (!FlightRecorderAccess.isRecording()) {
+            return TrackEvent.NONE;
+        }
+
+        Object factory = this.factory;
+        if (factory == null) {
+            synchronized (this) {
+                factory = this.factory;
+                if (factory == null) {
+                    factory = FlightRecorderAccess.createFactory(this.name, this.label, this.fieldNames, this.fieldTypes);
+                    if (factory == null) {
+                        return TrackEvent.NONE;
+                    }
+                    this.factory = factory;
+                }
+            }
+        }
+        return FlightRecorderAccess.begin(factory);
+    }
+
+    /**
+     * Stops recording events of all types and removes the listener registered with the flight recorder.
+     * Must be called when the plugin is disabled.
+     */
+    public static void shutdown() {
+        FlightRecorderAccess.shutdown();
+    }
+}
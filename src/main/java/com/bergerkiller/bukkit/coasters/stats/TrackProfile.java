@@ -0,0 +1,151 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Records the per-tick values of {@link TrackStatistics} into a ring buffer holding the most
+ * recent ticks, together with the players and coasters that caused nodes to be refreshed.
+ * The recorded timeline can be written out in CSV format.
+ */
+public class TrackProfile {
+    private final TrackStatistics statistics;
+    private final TrackStatistic[] columns;
+    private final long[][] values;
+    private final long[] times;
+    private final String[] causes;
+    private final Set<String> currentCauses = new TreeSet<String>();
+    private long tick = 0;
+    private int numTicks = 0;
+    private int nextTick = 0;
+
+    public TrackProfile(TrackStatistics statistics, int capacity) {
+        this.statistics = statistics;
+        this.columns = new TrackStatistic[] {
+                statistics.trackUpdateTime,
+                statistics.nodesRefreshed,
+                statistics.connectionsRefreshed,
+                statistics.railsPurgeTime,
+                statistics.railsStoreTime,
+                statistics.particleVisibilityTime,
+                statistics.particleAppearanceTime,
+                statistics.particlesVisited,
+                statistics.packetsSent,
+                statistics.autosaveTime
+        };
+        this.values = new long[capacity][this.columns.length];
+        this.times = new long[capacity];
+        this.causes = new String[capacity];
+    }
+
+    /**
+     * Gets the maximum number of ticks kept
+     * 
+     * @return capacity
+     */
+    public int getCapacity() {
+        return this.values.length;
+    }
+
+    /**
+     * Gets the number of ticks currently recorded
+     * 
+     * @return tick count
+     */
+    public int getTickCount() {
+        return this.numTicks;
+    }
+
+    /**
+     * Notes that a player or coaster caused work to be done during the current tick
+     * 
+     * @param cause description, such as the player or coaster name
+     */
+    public void addCause(String cause) {
+        this.currentCauses.add(cause);
+    }
+
+    /**
+     * Records the values accumulated during the current tick, overwriting the oldest tick
+     * when the buffer is full. Called by {@link TrackStatistics} at the end of every tick.
+     */
+    protected void recordTick() {
+        long[] row = this.values[this.nextTick];
+        for (int i = 0; i < this.columns.length; i++) {
+            row[i] = this.columns[i].getCurrent();
+        }
+        this.times[this.nextTick] = System.currentTimeMillis();
+        if (this.currentCauses.isEmpty()) {
+            this.causes[this.nextTick] = "";
+        } else {
+            StringBuilder str = new StringBuilder();
+            for (String cause : this.currentCauses) {
+                if (str.length() > 0) {
+                    str.append(';');
+                }
+                str.append(cause);
+            }
+            this.causes[this.nextTick] = str.toString();
+            this.currentCauses.clear();
+        }
+        this.nextTick = (this.nextTick + 1) % this.values.length;
+        if (this.numTicks < this.values.length) {
+            this.numTicks++;
+        }
+        this.tick++;
+    }
+
+    /**
+     * Writes the recorded ticks in CSV format, oldest tick first.
+     * Timings are written in milliseconds.
+     * 
+     * @param writer to write to
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException {
+        CSVWriter csvWriter = new CSVWriter(writer);
+        String[] line = new String[this.columns.length + 3];
+        line[0] = "tick";
+        line[1] = "time";
+        for (int i = 0; i < this.columns.length; i++) {
+            line[i + 2] = this.columns[i].getName() + (this.columns[i].isTime() ? " (ms)" : "");
+        }
+        line[line.length - 1] = "causes";
+        csvWriter.writeNext(line);
+
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        int first = (this.nextTick - this.numTicks + this.values.length) % this.values.length;
+        for (int n = 0; n < this.numTicks; n++) {
+            int index = (first + n) % this.values.length;
+            long[] row = this.values[index];
+            line[0] = Long.toString(this.tick - this.numTicks + n);
+            line[1] = timeFormat.format(new Date(this.times[index]));
+            for (int i = 0; i < this.columns.length; i++) {
+                if (this.columns[i].isTime()) {
+                    line[i + 2] = String.format(Locale.ENGLISH, "%.3f", row[i] / 1000000.0);
+                } else {
+                    line[i + 2] = Long.toString(row[i]);
+                }
+            }
+            line[line.length - 1] = this.causes[index];
+            csvWriter.writeNext(line);
+        }
+        csvWriter.flush();
+    }
+
+    /**
+     * Stops this profile, if it is still being recorded
+     */
+    public void stop() {
+        if (this.statistics.getProfile() == this) {
+            this.statistics.setProfile(null);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+import java.util.Arrays;
+
+/**
+ * A single counter or timer of {@link TrackStatistics}. Values are accumulated during a tick,
+ * and then recorded as a sample in a ring buffer holding the most recent samples.
+ * Timings are stored in nanoseconds.
+ */
+public class TrackStatistic {
+    private final TrackStatistics owner;
+    private final String name;
+    private final boolean time;
+    private final long[] samples;
+    private int numSamples = 0;
+    private int nextSample = 0;
+    private long current = 0;
+
+    protected TrackStatistic(TrackStatistics owner, String name, boolean time, int capacity) {
+        this.owner = owner;
+        this.name = name;
+        this.time = time;
+        this.samples = new long[capacity];
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets whether this statistic stores timings, in nanoseconds
+     * 
+     * @return True if this is a timer
+     */
+    public boolean isTime() {
+        return this.time;
+    }
+
+    /**
+     * Adds a value to the current sample, if statistics are enabled
+     * 
+     * @param value to add
+     */
+    public void add(long value) {
+        if (this.owner.isEnabled()) {
+            this.current += value;
+        }
+    }
+
+    /**
+     * Adds one to the current sample, if statistics are enabled
+     */
+    public void increment() {
+        if (this.owner.isEnabled()) {
+            this.current++;
+        }
+    }
+
+    /**
+     * Adds the time elapsed since a timer was started to the current sample
+     * 
+     * @param startTime returned by {@link TrackStatistics#startTimer()}
+     */
+    public void addTimeSince(long startTime) {
+        if (this.owner.isEnabled() && startTime != 0L) {
+            this.current += System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Records the time elapsed since a timer was started as a sample right away.
+     * Used for work that is not done every tick. The time is also added to the current
+     * value, which is reset at the end of the tick.
+     * 
+     * @param startTime returned by {@link TrackStatistics#startTimer()}
+     */
+    public void recordTimeSince(long startTime) {
+        if (this.owner.isEnabled() && startTime != 0L) {
+            long time = System.nanoTime() - startTime;
+            this.record(time);
+            this.current += time;
+        }
+    }
+
+    /**
+     * Gets the value accumulated during the current tick
+     * 
+     * @return current value
+     */
+    public long getCurrent() {
+        return this.current;
+    }
+
+    /**
+     * Records the value accumulated so far as a sample, and resets it
+     */
+    protected void commit() {
+        this.record(this.current);
+        this.current = 0;
+    }
+
+    protected void resetCurrent() {
+        this.current = 0;
+    }
+
+    protected void record(long value) {
+        this.samples[this.nextSample] = value;
+        this.nextSample = (this.nextSample + 1) % this.samples.length;
+        if (this.numSamples < this.samples.length) {
+            this.numSamples++;
+        }
+    }
+
+    protected void clear() {
+        this.numSamples = 0;
+        this.nextSample = 0;
+        this.current = 0;
+    }
+
+    public int getSampleCount() {
+        return this.numSamples;
+    }
+
+    /**
+     * Gets the sum of all recorded samples
+     * 
+     * @return total
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < this.numSamples; i++) {
+            total += this.samples[i];
+        }
+        return total;
+    }
+
+    public double getAverage() {
+        return (this.numSamples == 0) ? 0.0 : ((double) this.getTotal() / (double) this.numSamples);
+    }
+
+    /**
+     * Gets the value below or at which a fraction of the recorded samples lie
+     * 
+     * @param fraction between 0.0 and 1.0, 1.0 returns the maximum
+     * @return percentile value
+     */
+    public long getPercentile(double fraction) {
+        if (this.numSamples == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(this.samples, this.numSamples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Formats a value of this statistic for display
+     * 
+     * @param value
+     * @return formatted value
+     */
+    public String format(double value) {
+        if (this.time) {
+            return String.format("%.3fms", value / 1000000.0);
+        } else if (value == Math.rint(value)) {
+            return Long.toString((long) value);
+        } else {
+            return String.format("%.1f", value);
+        }
+    }
+
+    /**
+     * Gets a summary of the average, median, 95th percentile and maximum of the recorded samples
+     * 
+     * @return summary
+     */
+    public String getSummary() {
+        return this.name + ": avg " + this.format(this.getAverage()) +
+                ", p50 " + this.format(this.getPercentile(0.5)) +
+                ", p95 " + this.format(this.getPercentile(0.95)) +
+                ", max " + this.format(this.getPercentile(1.0));
+    }
+}
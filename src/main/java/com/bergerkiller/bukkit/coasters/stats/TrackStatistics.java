@@ -0,0 +1,156 @@
+package com.bergerkiller.bukkit.coasters.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters and timers of the work TC-Coasters does every tick. Statistics are only
+ * collected for a while after someone asked to view them, otherwise recording a value
+ * costs no more than checking whether collection is enabled.
+ */
+public class TrackStatistics {
+    /**
+     * Number of ticks of which the statistics are kept
+     */
+    public static final int WINDOW_TICKS = 200;
+    /**
+     * Number of ticks after the statistics were last viewed that collection is disabled
+     */
+    public static final int VIEW_TIMEOUT_TICKS = 5 * 60 * 20;
+    private final List<TrackStatistic> perTick = new ArrayList<TrackStatistic>();
+    private boolean enabled = false;
+    private int ticksUntilDisabled = 0;
+    private TrackProfile profile = null;
+
+    public final TrackStatistic trackUpdateTime = addPerTick("Track update", true);
+    public final TrackStatistic nodesRefreshed = addPerTick("Nodes refreshed", false);
+    public final TrackStatistic connectionsRefreshed = addPerTick("Connections refreshed", false);
+    public final TrackStatistic railsPurgeTime = addPerTick("Rails purge", true);
+    public final TrackStatistic railsStoreTime = addPerTick("Rails store", true);
+    public final TrackStatistic particleUpdateTime = addPerTick("Particle update", true);
+    public final TrackStatistic particleVisibilityTime = addPerTick("Particle visibility", true);
+    public final TrackStatistic particleAppearanceTime = addPerTick("Particle appearance", true);
+    public final TrackStatistic particlesVisited = addPerTick("Particles visited", false);
+    public final TrackStatistic packetsSent = addPerTick("Packets sent", false);
+    public final TrackStatistic getLogicCalls = addPerTick("getLogic calls", false);
+    public final TrackStatistic getLogicHits = addPerTick("getLogic hits", false);
+    public final TrackStatistic isRailCalls = addPerTick("isRail calls", false);
+    public final TrackStatistic isRailHits = addPerTick("isRail hits", false);
+    public final TrackStatistic autosaveTime = new TrackStatistic(this, "Autosave", true, 32);
+
+    private TrackStatistic addPerTick(String name, boolean time) {
+        TrackStatistic statistic = new TrackStatistic(this, name, time, WINDOW_TICKS);
+        this.perTick.add(statistic);
+        return statistic;
+    }
+
+    /**
+     * Gets whether statistics are currently being collected
+     * 
+     * @return True if enabled
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Starts or stops collecting statistics. Previously collected statistics are discarded when starting.
+     * Collection can not be stopped while a profile is being recorded, the profile must be stopped first.
+     * 
+     * @param enabled
+     * @throws IllegalStateException when stopping while a profile is being recorded
+     */
+    public void setEnabled(boolean enabled) {
+        if (!enabled && this.profile != null) {
+            throw new IllegalStateException("A profile is being recorded");
+        }
+        if (enabled && !this.enabled) {
+            for (TrackStatistic statistic : this.perTick) {
+                statistic.clear();
+            }
+            this.autosaveTime.clear();
+        }
+        this.enabled = enabled;
+        this.ticksUntilDisabled = enabled ? VIEW_TIMEOUT_TICKS : 0;
+    }
+
+    /**
+     * Gets the profile that is currently being recorded
+     * 
+     * @return profile, null if not profiling
+     */
+    public TrackProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * Starts recording a profile, or stops it when null. Statistics are collected for as long
+     * as the profile is recorded.
+     * 
+     * @param profile to record, null to stop
+     */
+    public void setProfile(TrackProfile profile) {
+        if (profile != null) {
+            this.setEnabled(true);
+        }
+        this.profile = profile;
+    }
+
+    /**
+     * Starts a timer. The returned value is passed to {@link TrackStatistic#addTimeSince(long)}
+     * once the work completes.
+     * 
+     * @return start time, 0 if statistics are disabled
+     */
+    public long startTimer() {
+        return this.enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Called at the end of every tick to record the values accumulated during the tick
+     */
+    public void onTickEnd() {
+        if (this.enabled) {
+            if (this.profile != null) {
+                this.profile.recordTick();
+            }
+            for (TrackStatistic statistic : this.perTick) {
+                statistic.commit();
+            }
+            this.autosaveTime.resetCurrent();
+            if (--this.ticksUntilDisabled <= 0 && this.profile == null) {
+                this.enabled = false;
+            }
+        }
+    }
+
+    /**
+     * Gets a report of all statistics collected, one line per statistic
+     * 
+     * @return report lines
+     */
+    public List<String> getReport() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("Per tick over the last " + this.trackUpdateTime.getSampleCount() + " ticks:");
+        for (TrackStatistic statistic : this.perTick) {
+            if (statistic != this.getLogicHits && statistic != this.isRailHits) {
+                lines.add(statistic.getSummary());
+            }
+        }
+        lines.add("getLogic hit ratio: " + formatRatio(this.getLogicHits, this.getLogicCalls));
+        lines.add("isRail hit ratio: " + formatRatio(this.isRailHits, this.isRailCalls));
+        if (this.autosaveTime.getSampleCount() > 0) {
+            lines.add("Over the last " + this.autosaveTime.getSampleCount() + " autosaves:");
+            lines.add(this.autosaveTime.getSummary());
+        }
+        return lines;
+    }
+
+    private static String formatRatio(TrackStatistic hits, TrackStatistic calls) {
+        long total = calls.getTotal();
+        if (total == 0) {
+            return "-";
+        }
+        return String.format("%.1f%%", 100.0 * (double) hits.getTotal() / (double) total);
+    }
+}
@@ -1,11 +1,15 @@
 package com.bergerkiller.bukkit.coasters.tracks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -14,9 +18,12 @@ import org.bukkit.util.FileUtil;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.TCCoasters;
+import com.bergerkiller.bukkit.coasters.stats.TrackEvent;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
 import com.bergerkiller.bukkit.coasters.tracks.csv.TrackCoasterCSVReader;
 import com.bergerkiller.bukkit.coasters.tracks.csv.TrackCoasterCSVWriter;
 import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVWriter;
 
@@ -28,6 +35,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
     private String _name;
     private List<TrackNode> _nodes;
     private boolean _changed = false;
+    private byte[] _csvHash = null;
+    private boolean _cacheSaved = false;
 
     public TrackCoaster(CoasterWorldAccess.Component world, String name) {
         super(world);
@@ -45,10 +54,9 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
     public TrackNode findNodeExact(Vector position) {
         final double MAX_DIFF = 1e-6;
         for (TrackNode node : this._nodes) {
-            Vector npos = node.getPosition();
-            double dx = Math.abs(npos.getX() - position.getX());
-            double dy = Math.abs(npos.getY() - position.getY());
-            double dz = Math.abs(npos.getZ() - position.getZ());
+            double dx = Math.abs(node.getPositionX() - position.getX());
+            double dy = Math.abs(node.getPositionY() - position.getY());
+            double dz = Math.abs(node.getPositionZ() - position.getZ());
             if (dx < MAX_DIFF && dy < MAX_DIFF && dz < MAX_DIFF) {
                 return node;
             }
@@ -70,7 +78,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
         // Minor
         double rq = (radius*radius);
         for (TrackNode node : this._nodes) {
-            if (node.getPosition().distanceSquared(position) < rq) {
+            if (MathUtil.distanceSquared(node.getPositionX(), node.getPositionY(), node.getPositionZ(),
+                                         position.getX(), position.getY(), position.getZ()) < rq) {
                 result.add(node);
             }
         }
@@ -81,7 +90,9 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
         if (this._nodes.remove(node)) {
             this.getTracks().disconnectAll(node);
             node.destroyParticles();
+            this.getTracks().removeNodeRegion(node);
             this.getTracks().cancelNodeRefresh(node);
+            this.getPlugin().releaseNodeId(node);
             this.getRails().purge(node);
             this.markChanged();
         }
@@ -98,6 +109,7 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
     public TrackNode createNewNode(Vector position, Vector up) {
         TrackNode node = new TrackNode(this, position, up);
         this._nodes.add(node);
+        this.getTracks().addNodeRegion(node);
         return node;
     }
 
@@ -125,6 +137,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
         for (TrackNode node : this._nodes) {
             this.getTracks().disconnectAll(node);
             node.destroyParticles();
+            this.getTracks().removeNodeRegion(node);
+            this.getPlugin().releaseNodeId(node);
         }
         this._nodes.clear();
     }
@@ -152,12 +166,14 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
             }
         }
 
-        try (CSVReader reader = new CSVReader(new FileReader(realFile))) {
-            // This writer helper class stores state about what nodes and connections still need to be written
-            TrackCoasterCSVReader coasterReader = new TrackCoasterCSVReader(this, reader);
-
-            coasterReader.read();
-            coasterReader.createPendingLinks();
+        TrackEvent event = TrackEventType.COASTER_LOAD.begin();
+        try {
+            // The contents are hashed to check whether the cache was created for the same contents
+            byte[] content = Files.readAllBytes(realFile.toPath());
+            try (Reader reader = new InputStreamReader(new ByteArrayInputStream(content))) {
+                this.read(reader);
+            }
+            this._csvHash = TrackCoasterCache.hash(content);
 
             // Note: on failure not all nodes may be loaded, but at least some is.
         } catch (IOException ex) {
@@ -168,6 +184,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
                     "An unexpected error occurred while loading coaster " + this.getName(), t);
         }
 
+        event.set(0, this.getName()).set(1, realFile.length()).set(2, this._nodes.size()).commit();
+
         // Coaster loaded. Any post-ops?
         this.markUnchanged();
     }
@@ -182,6 +200,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
             return;
         }
         this._changed = false;
+        this._csvHash = null;
+        this._cacheSaved = false;
 
         // Save coaster information to a tmp file first
         boolean success = false;
@@ -189,26 +209,9 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
         File folder = this.getTracks().getConfigFolder();
         File tmpFile = new File(folder, baseName + ".csv.tmp");
         File realFile = new File(folder, baseName + ".csv");
-        try (CSVWriter writer = new CSVWriter(new FileWriter(tmpFile, false))) {
-            // This writer helper class stores state about what nodes and connections still need to be written
-            TrackCoasterCSVWriter coasterWriter = new TrackCoasterCSVWriter(this, writer);
-
-            // Go by all junctions and write their state out first
-            // This preserves switching direction: the first 2 connections are selected
-            for (TrackNode node : this.getNodes()) {
-                coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.JUNCTIONS_ONLY);
-            }
-
-            // Go by all nodes and first save the chain from all nodes with one or less neighbours.
-            // These are the end nodes of a chain of nodes, and are almost always a valid start of a new chain.
-            for (TrackNode node : this.getNodes()) {
-                coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.ROOTS_ONLY);
-            }
-
-            // Clean up any remaining unwritten nodes, such as nodes in the middle of a chain
-            for (TrackNode node : this.getNodes()) {
-                coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.NORMAL);
-            }
+        TrackEvent event = TrackEventType.COASTER_SAVE.begin();
+        try (FileWriter writer = new FileWriter(tmpFile, false)) {
+            this.write(writer);
 
             // Yay!
             success = true;
@@ -220,6 +223,8 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
                     "An unexpected error occurred while saving coaster " + this.getName(), t);
         }
 
+        event.set(0, this.getName()).set(1, success ? tmpFile.length() : 0L).set(2, this._nodes.size()).commit();
+
         // If successful, attempt deleting the original save file
         if (success && (!realFile.delete() && realFile.exists())) {
             this.getPlugin().getLogger().log(Level.SEVERE,
@@ -241,8 +246,147 @@ public class TrackCoaster extends CoasterWorldAccess.Component {
             } else {
                 this.getPlugin().getLogger().log(Level.SEVERE,
                         "Failed to save coaster " + this.getName() + ": Failed to move or copy file");
+                return;
             }
         }
+
+        // Remember what was saved, so a cache can be created for it
+        try {
+            this._csvHash = TrackCoasterCache.hash(Files.readAllBytes(realFile.toPath()));
+        } catch (IOException ex) {
+            // No cache is created
+        }
+    }
+
+    /**
+     * Gets the hash of the csv contents last loaded or saved
+     * 
+     * @return csv hash, null if loading or saving failed
+     */
+    public byte[] getCSVHash() {
+        return this._csvHash;
+    }
+
+    /**
+     * Gets whether the cache of this coaster was restored or saved for the csv contents last loaded or saved
+     * 
+     * @return True if the cache is up to date
+     */
+    public boolean isCacheSaved() {
+        return this._cacheSaved;
+    }
+
+    /**
+     * Gets the file the cache of this coaster is saved to, next to the csv file
+     * 
+     * @return cache file
+     */
+    public File getCacheFile() {
+        return new File(this.getTracks().getConfigFolder(), TCCoasters.escapeName(this.getName()) + ".cache");
+    }
+
+    /**
+     * Restores the node directions and rails information from the cache file, instead of
+     * refreshing all nodes. Fails when the cache is missing or was created for different contents.
+     * Must be called after all coasters are loaded, as nodes can connect with other coasters.
+     * 
+     * @return True if the cache was restored, False if all nodes must be refreshed
+     */
+    protected boolean restoreCache() {
+        this._cacheSaved = false;
+        File cacheFile = this.getCacheFile();
+        if (this._csvHash == null || this._nodes.isEmpty() || !cacheFile.exists()) {
+            return false;
+        }
+        try {
+            this._cacheSaved = TrackCoasterCache.read(this, cacheFile);
+        } catch (IOException ex) {
+            this.getPlugin().getLogger().log(Level.WARNING,
+                    "An I/O Error occurred while reading the cache of coaster " + this.getName(), ex);
+        }
+        return this._cacheSaved;
+    }
+
+    /**
+     * Called when nodes of this coaster are refreshed, which makes the cache outdated. This also happens
+     * when the refresh of a node of another coaster spreads to the nodes of this coaster, as the rails paths
+     * depend on the shape of connected nodes up to two connections away. The outdated cache file is deleted
+     * right away, so it is never restored when it can not be saved again in time.
+     */
+    protected void markCacheOutdated() {
+        if (this._cacheSaved) {
+            this._cacheSaved = false;
+            this.getCacheFile().delete();
+        }
+    }
+
+    /**
+     * Saves the node directions and rails information to the cache file, if it was not already saved
+     * for the current csv contents. All nodes must have been refreshed.
+     */
+    protected void saveCache() {
+        if (this._cacheSaved || this._changed || this._csvHash == null || this._nodes.isEmpty()) {
+            return;
+        }
+
+        // Also when it fails, so that it is not attempted again every autosave
+        this._cacheSaved = true;
+        File cacheFile = this.getCacheFile();
+        try {
+            TrackCoasterCache.write(this, cacheFile);
+        } catch (IOException ex) {
+            this.getPlugin().getLogger().log(Level.WARNING,
+                    "An I/O Error occurred while saving the cache of coaster " + this.getName(), ex);
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * Reads nodes and connections in CSV format, and adds them to this coaster
+     * 
+     * @param reader to read the CSV contents from
+     * @throws IOException
+     */
+    public void read(Reader reader) throws IOException {
+        CSVReader csvReader = new CSVReader(reader);
+
+        // This reader helper class stores the links that can only be made after all nodes are read
+        TrackCoasterCSVReader coasterReader = new TrackCoasterCSVReader(this, csvReader);
+
+        coasterReader.read();
+        coasterReader.createPendingLinks();
+    }
+
+    /**
+     * Writes all nodes and connections of this coaster in CSV format
+     * 
+     * @param writer to write the CSV contents to
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException {
+        CSVWriter csvWriter = new CSVWriter(writer);
+
+        // This writer helper class stores state about what nodes and connections still need to be written
+        TrackCoasterCSVWriter coasterWriter = new TrackCoasterCSVWriter(this, csvWriter);
+
+        // Go by all junctions and write their state out first
+        // This preserves switching direction: the first 2 connections are selected
+        for (TrackNode node : this.getNodes()) {
+            coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.JUNCTIONS_ONLY);
+        }
+
+        // Go by all nodes and first save the chain from all nodes with one or less neighbours.
+        // These are the end nodes of a chain of nodes, and are almost always a valid start of a new chain.
+        for (TrackNode node : this.getNodes()) {
+            coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.ROOTS_ONLY);
+        }
+
+        // Clean up any remaining unwritten nodes, such as nodes in the middle of a chain
+        for (TrackNode node : this.getNodes()) {
+            coasterWriter.writeFrom(node, TrackCoasterCSVWriter.Mode.NORMAL);
+        }
+
+        csvWriter.flush();
     }
 
 }
@@ -0,0 +1,247 @@
+package com.bergerkiller.bukkit.coasters.tracks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.bergerkiller.bukkit.coasters.rails.TrackRailsSection;
+import com.bergerkiller.bukkit.coasters.rails.TrackRailsWorld;
+import com.bergerkiller.bukkit.tc.controller.components.RailPath;
+
+/**
+ * Stores the information computed when refreshing the nodes of a coaster in a cache file next
+ * to the csv file of the coaster: node directions, connection end points, rails paths and the blocks
+ * covered by them. After loading, this cache is restored instead of refreshing all nodes, as long as it
+ * was created from the same csv contents and all nodes are still connected to the same neighbours.
+ * The rails paths also depend on nodes of other coasters further away than the direct neighbours, which
+ * are not checked here. Instead, the cache is invalidated when the refresh of such a node spreads to this coaster.
+ */
+final class TrackCoasterCache {
+    private static final int MAGIC = 0x54434343; // TCCC
+    private static final int VERSION = 2;
+
+    private TrackCoasterCache() {
+    }
+
+    /**
+     * Computes the hash of the csv contents of a coaster, which identifies the contents the cache was created for
+     * 
+     * @param content of the csv file
+     * @return hash
+     */
+    public static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new UnsupportedOperationException("SHA-1 is not supported", ex);
+        }
+    }
+
+    /**
+     * Writes the cache of a coaster. All nodes of the coaster must have been refreshed.
+     * 
+     * @param coaster to write the cache of
+     * @param file to write to
+     * @throws IOException
+     */
+    public static void write(TrackCoaster coaster, File file) throws IOException {
+        TrackRailsWorld rails = coaster.getRails();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            byte[] hash = coaster.getCSVHash();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hash.length);
+            out.write(hash);
+            out.writeInt(coaster.getNodes().size());
+            for (TrackNode node : coaster.getNodes()) {
+                out.writeDouble(node.getPositionX());
+                out.writeDouble(node.getPositionY());
+                out.writeDouble(node.getPositionZ());
+                node.writeShape(out);
+
+                out.writeInt(node._connections.length);
+                for (TrackConnection conn : node._connections) {
+                    TrackConnection.EndPoint end = (conn._endA.node == node) ? conn._endA : conn._endB;
+                    out.writeDouble(end.other.getPositionX());
+                    out.writeDouble(end.other.getPositionY());
+                    out.writeDouble(end.other.getPositionZ());
+                    out.writeDouble(end.directionX);
+                    out.writeDouble(end.directionY);
+                    out.writeDouble(end.directionZ);
+                    out.writeDouble(end.distance);
+                }
+
+                List<TrackRailsSection> sections = rails.getSections(node);
+                out.writeInt(sections.size());
+                for (TrackRailsSection section : sections) {
+                    out.writeBoolean(section.primary);
+                    RailPath.Point[] points = section.path.getPoints();
+                    out.writeInt(points.length);
+                    for (RailPath.Point point : points) {
+                        out.writeDouble(point.x);
+                        out.writeDouble(point.y);
+                        out.writeDouble(point.z);
+                        out.writeDouble(point.up_x);
+                        out.writeDouble(point.up_y);
+                        out.writeDouble(point.up_z);
+                    }
+                    int[] blocks = rails.getBlocks(section);
+                    out.writeInt(blocks.length);
+                    for (int coord : blocks) {
+                        out.writeInt(coord);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the cache of a coaster and restores the node directions, connection end points and rails information.
+     * Nothing is restored when the cache was created for different csv contents or nodes.
+     * 
+     * @param coaster to restore
+     * @param file to read from
+     * @return True if the cache was restored, False if it is outdated
+     * @throws IOException
+     */
+    public static boolean read(TrackCoaster coaster, File file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<NodeCache> nodes;
+        try {
+            nodes = readNodes(coaster, in);
+        } catch (BufferUnderflowException ex) {
+            return false; // Truncated
+        }
+        if (nodes == null || in.hasRemaining()) {
+            return false;
+        }
+
+        // All valid, apply it
+        TrackRailsWorld rails = coaster.getRails();
+        for (NodeCache cache : nodes) {
+            TrackNode node = cache.node;
+            node.restoreShape(cache.shape);
+            for (int i = 0; i < node._connections.length; i++) {
+                TrackConnection conn = node._connections[i];
+                TrackConnection.EndPoint end = (conn._endA.node == node) ? conn._endA : conn._endB;
+                end.directionX = cache.endPoints[4 * i];
+                end.directionY = cache.endPoints[4 * i + 1];
+                end.directionZ = cache.endPoints[4 * i + 2];
+                end.distance = cache.endPoints[4 * i + 3];
+                conn.invalidateCurve();
+            }
+            for (int i = 0; i < cache.sections.size(); i++) {
+                rails.restore(cache.sections.get(i), cache.blocks.get(i));
+            }
+        }
+
+        // The connections are not refreshed, so they are added to the regions of their restored shape here
+        for (NodeCache cache : nodes) {
+            for (TrackConnection conn : cache.node._connections) {
+                if (conn._endA.node == cache.node || conn._endA.node.getCoaster() != coaster) {
+                    conn.onShapeUpdated();
+                }
+            }
+        }
+        return true;
+    }
+
+    // Reads and validates the cached information of all nodes, returns null if it does not match the coaster
+    private static List<NodeCache> readNodes(TrackCoaster coaster, ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return null;
+        }
+        byte[] hash = new byte[readCount(in, 1)];
+        in.get(hash);
+        if (!Arrays.equals(hash, coaster.getCSVHash())) {
+            return null;
+        }
+        List<TrackNode> coasterNodes = coaster.getNodes();
+        if (in.getInt() != coasterNodes.size()) {
+            return null;
+        }
+
+        List<NodeCache> nodes = new ArrayList<NodeCache>(coasterNodes.size());
+        for (TrackNode node : coasterNodes) {
+            if (!readPosition(in, node)) {
+                return null;
+            }
+            NodeCache cache = new NodeCache(node);
+            for (int i = 0; i < cache.shape.length; i++) {
+                cache.shape[i] = in.getDouble();
+            }
+
+            // Connections, including those to other coasters, must lead to the same nodes in the same order
+            if (in.getInt() != node._connections.length) {
+                return null;
+            }
+            cache.endPoints = new double[4 * node._connections.length];
+            for (int i = 0; i < node._connections.length; i++) {
+                if (!readPosition(in, node._connections[i].getOtherNode(node))) {
+                    return null;
+                }
+                for (int j = 0; j < 4; j++) {
+                    cache.endPoints[4 * i + j] = in.getDouble();
+                }
+            }
+
+            int numSections = readCount(in, 9);
+            cache.sections = new ArrayList<TrackRailsSection>(numSections);
+            cache.blocks = new ArrayList<int[]>(numSections);
+            for (int s = 0; s < numSections; s++) {
+                boolean primary = (in.get() != 0);
+                int numPoints = readCount(in, 48);
+                RailPath.Builder builder = new RailPath.Builder();
+                for (int i = 0; i < numPoints; i++) {
+                    builder.add(new RailPath.Point(in.getDouble(), in.getDouble(), in.getDouble(),
+                                                   in.getDouble(), in.getDouble(), in.getDouble()));
+                }
+                int[] blocks = new int[readCount(in, 4)];
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = in.getInt();
+                }
+                cache.sections.add(new TrackRailsSection(node, builder.build(), primary));
+                cache.blocks.add(blocks);
+            }
+            nodes.add(cache);
+        }
+        return nodes;
+    }
+
+    // Reads the number of elements that follow, failing when there are not that many bytes left
+    private static int readCount(ByteBuffer in, int elementSize) {
+        int count = in.getInt();
+        if (count < 0 || count > (in.remaining() / elementSize)) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static boolean readPosition(ByteBuffer in, TrackNode node) {
+        return in.getDouble() == node.getPositionX() &&
+               in.getDouble() == node.getPositionY() &&
+               in.getDouble() == node.getPositionZ();
+    }
+
+    private static class NodeCache {
+        public final TrackNode node;
+        public final double[] shape = new double[6];
+        public double[] endPoints;
+        public List<TrackRailsSection> sections;
+        public List<int[]> blocks;
+
+        public NodeCache(TrackNode node) {
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.bergerkiller.bukkit.coasters.tracks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.util.Vector;
+
+/**
+ * Generates coasters with random, but deterministic, shapes. Used to test how well
+ * large worlds perform. The same seed and settings always produce the same coasters.
+ */
+public class TrackCoasterGenerator {
+    private final TrackWorld tracks;
+    private final Random random;
+    private String namePrefix = "generated";
+    private Vector center = new Vector(0.0, 64.0, 0.0);
+    private double spread = 512.0;
+    private int numNodes = 10000;
+    private int numCoasters = 10;
+    private double junctionChance = 0.01;
+    private double linkChance = 0.2;
+
+    public TrackCoasterGenerator(TrackWorld tracks, long seed) {
+        this.tracks = tracks;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets the prefix of the names of the generated coasters
+     * 
+     * @param namePrefix
+     */
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Sets the center of the area in which coasters start
+     * 
+     * @param center
+     */
+    public void setCenter(Vector center) {
+        this.center = center.clone();
+    }
+
+    /**
+     * Sets the horizontal distance from the center within which coasters start
+     * 
+     * @param spread
+     */
+    public void setSpread(double spread) {
+        this.spread = spread;
+    }
+
+    /**
+     * Sets the total number of nodes to generate, including the nodes of junction branches
+     * 
+     * @param numNodes
+     */
+    public void setNumNodes(int numNodes) {
+        this.numNodes = numNodes;
+    }
+
+    /**
+     * Sets the number of coasters the nodes are divided over
+     * 
+     * @param numCoasters
+     */
+    public void setNumCoasters(int numCoasters) {
+        this.numCoasters = numCoasters;
+    }
+
+    /**
+     * Sets the chance for every node that a short branch is added, turning it into a junction
+     * 
+     * @param junctionChance [0 ... 1]
+     */
+    public void setJunctionChance(double junctionChance) {
+        this.junctionChance = junctionChance;
+    }
+
+    /**
+     * Sets the chance for every coaster that its end is connected to a node of another coaster
+     * 
+     * @param linkChance [0 ... 1]
+     */
+    public void setLinkChance(double linkChance) {
+        this.linkChance = linkChance;
+    }
+
+    /**
+     * Generates the coasters and adds them to the world
+     * 
+     * @return generated coasters
+     */
+    public List<TrackCoaster> generate() {
+        int numCoasters = Math.max(1, Math.min(this.numCoasters, this.numNodes / 2));
+        List<TrackCoaster> coasters = new ArrayList<TrackCoaster>(numCoasters);
+        int remaining = this.numNodes;
+        for (int i = 0; i < numCoasters; i++) {
+            int count = remaining / (numCoasters - i);
+            remaining -= count;
+            coasters.add(this.generateCoaster(this.getFreeName(i), count));
+        }
+
+        // Connect the end of coasters to a random node of a coaster generated before it
+        for (int i = 1; i < coasters.size(); i++) {
+            if (this.random.nextDouble() < this.linkChance) {
+                List<TrackNode> nodes = coasters.get(i).getNodes();
+                List<TrackNode> otherNodes = coasters.get(this.random.nextInt(i)).getNodes();
+                if (!nodes.isEmpty() && !otherNodes.isEmpty()) {
+                    this.tracks.connect(nodes.get(nodes.size() - 1),
+                                        otherNodes.get(this.random.nextInt(otherNodes.size())));
+                }
+            }
+        }
+        return coasters;
+    }
+
+    // Generates a single coaster as a random walk, with the occasional branch
+    private TrackCoaster generateCoaster(String name, int count) {
+        TrackCoaster coaster = new TrackCoaster(this.tracks, name);
+        this.tracks.getCoasters().add(coaster);
+
+        double x = this.center.getX() + (2.0 * this.random.nextDouble() - 1.0) * this.spread;
+        double y = this.center.getY() + 32.0 * this.random.nextDouble();
+        double z = this.center.getZ() + (2.0 * this.random.nextDouble() - 1.0) * this.spread;
+        double yaw = 2.0 * Math.PI * this.random.nextDouble();
+        double pitch = 0.0;
+        TrackNode prev = null;
+        int created = 0;
+        while (created < count) {
+            double turn = 0.4 * (this.random.nextDouble() - 0.5);
+            yaw += turn;
+            pitch += 0.2 * (this.random.nextDouble() - 0.5);
+            pitch = Math.max(-0.5, Math.min(0.5, pitch));
+            if ((y < this.center.getY() - 16.0 && pitch < 0.0) || (y > this.center.getY() + 64.0 && pitch > 0.0)) {
+                pitch = -pitch;
+            }
+
+            // Bank into the turn
+            Vector up = getBankedUp(yaw, -2.0 * turn);
+            TrackNode node = coaster.createNewNode(new Vector(x, y, z), up);
+            created++;
+            if (prev != null) {
+                this.tracks.connect(prev, node);
+
+                // Add a short branch to the side, turning this node into a junction
+                if (created < count && this.random.nextDouble() < this.junctionChance) {
+                    double branchYaw = yaw + (this.random.nextBoolean() ? 0.5 : -0.5) * Math.PI;
+                    Vector branchPos = new Vector(x + 4.0 * Math.cos(branchYaw), y, z + 4.0 * Math.sin(branchYaw));
+                    this.tracks.connect(node, coaster.createNewNode(branchPos, up));
+                    created++;
+                }
+            }
+            prev = node;
+
+            double step = 3.0 + 3.0 * this.random.nextDouble();
+            x += step * Math.cos(yaw) * Math.cos(pitch);
+            y += step * Math.sin(pitch);
+            z += step * Math.sin(yaw) * Math.cos(pitch);
+        }
+        return coaster;
+    }
+
+    private String getFreeName(int index) {
+        String name = this.namePrefix + index;
+        int suffix = 1;
+        while (this.tracks.findCoaster(name) != null) {
+            name = this.namePrefix + index + "_" + (suffix++);
+        }
+        return name;
+    }
+
+    // Up vector rolled by an angle around the direction of the given yaw
+    private static Vector getBankedUp(double yaw, double bank) {
+        double sin = Math.sin(bank);
+        return new Vector(-Math.sin(yaw) * sin, Math.cos(bank), Math.cos(yaw) * sin);
+    }
+}
@@ -1,15 +1,12 @@
 package com.bergerkiller.bukkit.coasters.tracks;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.bukkit.util.Vector;
 
-import com.bergerkiller.bukkit.coasters.particles.TrackParticleLine;
-import com.bergerkiller.bukkit.coasters.particles.TrackParticleWorld;
+import com.bergerkiller.bukkit.coasters.core.TrackCurve;
+import com.bergerkiller.bukkit.coasters.particles.TrackParticleLineDetail;
 import com.bergerkiller.bukkit.common.bases.IntVector3;
+import com.bergerkiller.bukkit.common.math.Quaternion;
 import com.bergerkiller.bukkit.common.utils.MathUtil;
-import com.bergerkiller.bukkit.tc.Util;
 import com.bergerkiller.bukkit.tc.controller.components.RailPath;
 
 /**
@@ -17,11 +14,28 @@ import com.bergerkiller.bukkit.tc.controller.components.RailPath;
  */
 public class TrackConnection {
     protected static final TrackConnection[] EMPTY_ARR = new TrackConnection[0];
+    /**
+     * Number of the most detailed line segments merged into a single line for every level of detail,
+     * from detailed to coarse. Coarse segments are kept short enough to stay within a single cell of the particle world.
+     */
+    private static final int[] LOD_SEGMENT_STEP = { 1, 4, 8 };
+    /**
+     * Distance from the viewer to the connection from which each level of detail is displayed.
+     * Only one level is displayed to a viewer at a time.
+     */
+    private static final double[] LOD_VIEW_DISTANCE = { 0.0, 32.0, 64.0 };
     protected final EndPoint _endA;
     protected final EndPoint _endB;
     //private final TrackParticleLine _connParticleLine;
     private boolean _selected = false;
-    private List<TrackParticleLine> lines = new ArrayList<TrackParticleLine>();
+    private TrackParticleLineDetail lineDetail = null;
+    // Whether particles are active, and the range of particle regions the curve lies in, set by the TrackWorld
+    protected boolean _particlesActive = false;
+    protected IntVector3 _particleRegionMin = null;
+    protected IntVector3 _particleRegionMax = null;
+    // Shape of the curve, updated lazily after the nodes or end points of this connection change
+    private final TrackCurve _curve = new TrackCurve();
+    private boolean _curveValid = false;
 
     protected TrackConnection(TrackNode nodeA, TrackNode nodeB) {
         this._endA = new EndPoint(nodeA, nodeB);
@@ -79,7 +93,7 @@ public class TrackConnection {
      * @return number of points, minimally 2
      */
     public int getPointCount() {
-        int n = MathUtil.ceil(this._endA.node.getPosition().distance(this._endB.node.getPosition()) / 1.0);
+        int n = MathUtil.ceil(this._endA.node.distance(this._endB.node) / 1.0);
         if (n < 2) {
             n = 2;
         }
@@ -93,7 +107,8 @@ public class TrackConnection {
      * @return motion vector
      */
     public Vector getDirection(TrackNode atNode) {
-        return this._endA.node == atNode ? this._endA.direction : this._endB.direction;
+        EndPoint end = (this._endA.node == atNode) ? this._endA : this._endB;
+        return new Vector(end.directionX, end.directionY, end.directionZ);
     }
 
     /**
@@ -122,11 +137,44 @@ public class TrackConnection {
     public void onShapeUpdated() {
         //this._connParticleLine.setPositions(this._endA.node.getPosition(), this._endB.node.getPosition());
 
-        // Initialize the 4 points of the De Casteljau's algorithm inputs
-        // d1 and d2 are the diff between p1-p3 and p2-p4
-        
+        this._endA.node.getTracks().updateConnectionRegions(this);
+        this.updateParticles();
+    }
+
+    /**
+     * Gets whether the line particles of this connection are currently displayed.
+     * This is the case while editors are near any of the regions the connection passes through.
+     * 
+     * @return True if particles are active
+     */
+    public boolean isParticlesActive() {
+        return this._particlesActive;
+    }
+
+    /**
+     * Creates or destroys the line particles of this connection.
+     * Called by the {@link TrackWorld} when editors come near or leave.
+     * 
+     * @param active whether particles are created (true) or destroyed (false)
+     */
+    protected void setParticlesActive(boolean active) {
+        if (this._particlesActive != active) {
+            this._particlesActive = active;
+            this.updateParticles();
+        }
+    }
+
+    /**
+     * Creates, updates or destroys the line particles of this connection.
+     * Lines are only displayed while the particles of this connection are active.
+     */
+    public void updateParticles() {
+        if (!this._particlesActive) {
+            this.destroyParticles();
+            return;
+        }
 
-        // Calculate the points forming the line
+        // Calculate the points forming the most detailed lines, one line per block
         int n = this.getPointCount();
         Vector[] points = new Vector[n];
         points[0] = this._endA.node.getPosition();
@@ -136,22 +184,12 @@ public class TrackConnection {
             points[i] = this.getPosition(t);
         }
 
-        if ((n - 1) != this.lines.size()) {
-            for (int i = 0; i < this.lines.size(); i++) {
-                this.lines.get(i).remove();
-            }
-            this.lines.clear();
-
-            TrackParticleWorld pworld = this._endA.node.getCoaster().getParticles();
-            for (int i = 0; i < (n-1); i++) {
-                this.lines.add(pworld.addParticleLine(points[i], points[i + 1]));
-            }
-        } else {
-            for (int i = 0; i < this.lines.size(); i++) {
-                this.lines.get(i).setPositions(points[i], points[i+1]);
-            }
+        // Only the lines of the levels of detail viewers need are created
+        if (this.lineDetail == null) {
+            this.lineDetail = new TrackParticleLineDetail(this._endA.node.getCoaster().getParticles(),
+                    LOD_SEGMENT_STEP, LOD_VIEW_DISTANCE);
         }
-
+        this.lineDetail.update(points);
     }
 
     /**
@@ -164,11 +202,54 @@ public class TrackConnection {
      * @return point at t
      */
     public RailPath.Point getPathPoint(IntVector3 railsPos, double t) {
-        Vector pos = getPosition(t);
-        pos.setX(pos.getX() - railsPos.x);
-        pos.setY(pos.getY() - railsPos.y);
-        pos.setZ(pos.getZ() - railsPos.z);
-        return new RailPath.Point(pos, getOrientation(t));
+        TrackCurve curve = this.getCurve();
+        double wA = curve.getOrientationWeightA(t);
+        double wB = curve.getOrientationWeightB(t);
+        return new RailPath.Point(
+                curve.getPositionX(t) - railsPos.x,
+                curve.getPositionY(t) - railsPos.y,
+                curve.getPositionZ(t) - railsPos.z,
+                curve.getOrientationX(wA, wB),
+                curve.getOrientationY(wA, wB),
+                curve.getOrientationZ(wA, wB));
+    }
+
+    /**
+     * Adds rails path points at evenly spaced t to a rail path builder.
+     * Positions and orientations are sampled in a single batch by the {@link TrackCurve}.
+     * 
+     * @param builder to add the points to
+     * @param railsPos
+     * @param t0 t of the first point [0 ... 1]
+     * @param dt difference in t between two points, can be negative
+     * @param count number of points to add
+     */
+    public void addPathPoints(RailPath.Builder builder, IntVector3 railsPos, double t0, double dt, int count) {
+        TrackCurve curve = this.getCurve();
+        double[] positions = new double[3 * count];
+        curve.samplePositions(t0, dt, count, positions);
+        double[] orientations = new double[3 * count];
+        curve.sampleOrientations(t0, dt, count, orientations);
+        for (int k = 0; k < (3 * count); k += 3) {
+            builder.add(new RailPath.Point(
+                    positions[k] - railsPos.x,
+                    positions[k + 1] - railsPos.y,
+                    positions[k + 2] - railsPos.z,
+                    orientations[k], orientations[k + 1], orientations[k + 2]));
+        }
+    }
+
+    /**
+     * Calculates the positions along this track at evenly spaced t.
+     * See {@link TrackCurve#samplePositions(double, double, int, double[])}.
+     * 
+     * @param t0 t of the first position [0 ... 1]
+     * @param dt difference in t between two positions, can be negative
+     * @param count number of positions to calculate
+     * @param out array to store the coordinates in, length must be at least 3 * count
+     */
+    public void samplePositions(double t0, double dt, int count, double[] out) {
+        this.getCurve().samplePositions(t0, dt, count, out);
     }
 
     /**
@@ -195,7 +276,25 @@ public class TrackConnection {
      * @return orientation at t
      */
     public Vector getOrientation(double t) {
-        return Util.lerpOrientation(this._endA.node.getOrientation(), this._endB.node.getOrientation(), t);
+        return getOrientation(t, new Vector());
+    }
+
+    /**
+     * Calculates the up-vector orientation at a particular t,
+     * and stores it in an existing vector
+     * 
+     * @param t [0 ... 1]
+     * @param out vector to store the orientation in
+     * @return out
+     */
+    public Vector getOrientation(double t, Vector out) {
+        TrackCurve curve = this.getCurve();
+        double wA = curve.getOrientationWeightA(t);
+        double wB = curve.getOrientationWeightB(t);
+        out.setX(curve.getOrientationX(wA, wB));
+        out.setY(curve.getOrientationY(wA, wB));
+        out.setZ(curve.getOrientationZ(wA, wB));
+        return out;
     }
 
     /**
@@ -205,28 +304,23 @@ public class TrackConnection {
      * @return position at t
      */    
     public Vector getPosition(double t) {
-        // https://pomax.github.io/bezierinfo/#decasteljau
-        double tp = t;
-        double tn = 1.0 - tp;
-        double tp2 = tp * tp;
-
-        double ff = 3.0 * (tp - tp2);
-        double fdB = tp * ff;
-        double fdA = tn * ff;
-
-        double fpB = fdB + (tp * tp2);
-        double fpA = -fpB + 1.0;
-
-        double pfdA = fdA * this._endA.distance;
-        double pfdB = fdB * this._endB.distance;
-        Vector pA = this._endA.node.getPosition();
-        Vector pB = this._endB.node.getPosition();
-        Vector dA = this._endA.direction;
-        Vector dB = this._endB.direction;
-        return new Vector(
-                fpA*pA.getX() + fpB*pB.getX() + pfdA*dA.getX() + pfdB*dB.getX(),
-                fpA*pA.getY() + fpB*pB.getY() + pfdA*dA.getY() + pfdB*dB.getY(),
-                fpA*pA.getZ() + fpB*pB.getZ() + pfdA*dA.getZ() + pfdB*dB.getZ());
+        return getPosition(t, new Vector());
+    }
+
+    /**
+     * Calculates the position along this track at a particular t,
+     * and stores it in an existing vector
+     * 
+     * @param t [0 ... 1]
+     * @param out vector to store the position in
+     * @return out
+     */
+    public Vector getPosition(double t, Vector out) {
+        TrackCurve curve = this.getCurve();
+        out.setX(curve.getPositionX(t));
+        out.setY(curve.getPositionY(t));
+        out.setZ(curve.getPositionZ(t));
+        return out;
     }
 
     /**
@@ -236,36 +330,66 @@ public class TrackConnection {
      * @return motion vector at t
      */
     public Vector getMotionVector(double t) {
+        return getMotionVector(t, new Vector());
+    }
+
+    /**
+     * Calculates the motion vector along this track at a particular t,
+     * and stores it in an existing vector
+     * 
+     * @param t [0 ... 1]
+     * @param out vector to store the motion vector in
+     * @return out
+     */
+    public Vector getMotionVector(double t, Vector out) {
         // Derivative of getPosition(t)
-        double tp = t;
-        double tn = 1.0 - tp;
-
-        double tp2 = tp * tp;
-        double tn2 = tn * tn;
-
-        double fpA_dt = 6.0*(tp2-tp);
-        double fpB_dt = -fpA_dt;
-
-        double fdA_dt = fpA_dt + 3.0*tn2;
-        double fdB_dt = fpB_dt - 3.0*tp2;
-
-        double pfdA_dt = fdA_dt * this._endA.distance;
-        double pfdB_dt = fdB_dt * this._endB.distance;
-        Vector pA = this._endA.node.getPosition();
-        Vector pB = this._endB.node.getPosition();
-        Vector dA = this._endA.direction;
-        Vector dB = this._endB.direction;
-        return new Vector(
-                fpA_dt*pA.getX() + fpB_dt*pB.getX() + pfdA_dt*dA.getX() + pfdB_dt*dB.getX(),
-                fpA_dt*pA.getY() + fpB_dt*pB.getY() + pfdA_dt*dA.getY() + pfdB_dt*dB.getY(),
-                fpA_dt*pA.getZ() + fpB_dt*pB.getZ() + pfdA_dt*dA.getZ() + pfdB_dt*dB.getZ()).normalize();
+        TrackCurve curve = this.getCurve();
+        out.setX(curve.getMotionX(t));
+        out.setY(curve.getMotionY(t));
+        out.setZ(curve.getMotionZ(t));
+        return out.normalize();
+    }
+
+    /**
+     * Invalidates the cached curve of this connection.
+     * Must be called when the position or orientation of a node, or an end point, changes.
+     */
+    protected void invalidateCurve() {
+        this._curveValid = false;
+    }
+
+    /**
+     * Gets the shape of this connection, updating it first if the nodes or end points changed
+     * 
+     * @return curve
+     */
+    public TrackCurve getCurve() {
+        if (!this._curveValid) {
+            this._curveValid = true;
+
+            // qA/qB are the end point directions multiplied by their distance
+            TrackNode nA = this._endA.node;
+            TrackNode nB = this._endB.node;
+            EndPoint eA = this._endA;
+            EndPoint eB = this._endB;
+            this._curve.setShape(nA.getPositionX(), nA.getPositionY(), nA.getPositionZ(),
+                                 eA.distance * eA.directionX, eA.distance * eA.directionY, eA.distance * eA.directionZ,
+                                 nB.getPositionX(), nB.getPositionY(), nB.getPositionZ(),
+                                 eB.distance * eB.directionX, eB.distance * eB.directionY, eB.distance * eB.directionZ);
+
+            // Same rotations as Util.lerpOrientation slerps between
+            Quaternion qA = Quaternion.fromLookDirection(nA.getOrientation());
+            Quaternion qB = Quaternion.fromLookDirection(nB.getOrientation());
+            this._curve.setOrientation(qA.getX(), qA.getY(), qA.getZ(), qA.getW(),
+                                       qB.getX(), qB.getY(), qB.getZ(), qB.getW());
+        }
+        return this._curve;
     }
 
     public void destroyParticles() {
-        for (int i = 0; i < this.lines.size(); i++) {
-            this.lines.get(i).remove();
+        if (this.lineDetail != null) {
+            this.lineDetail.remove();
         }
-        this.lines.clear();
         //this._connParticleLine.remove();
     }
 
@@ -278,7 +402,7 @@ public class TrackConnection {
     protected static class EndPoint {
         protected final TrackNode node;
         protected final TrackNode other;
-        protected Vector direction = new Vector();
+        protected double directionX = 0.0, directionY = 0.0, directionZ = 0.0;
         protected double distance = 0.0;
 
         public EndPoint(TrackNode node, TrackNode other) {
@@ -287,22 +411,29 @@ public class TrackConnection {
         }
 
         public void initAuto() {
-            this.direction = other.getPosition().clone().subtract(node.getPosition()).normalize();
             this.updateDistance();
+            double n = 0.5 / this.distance;
+            this.directionX = n * (other.getPositionX() - node.getPositionX());
+            this.directionY = n * (other.getPositionY() - node.getPositionY());
+            this.directionZ = n * (other.getPositionZ() - node.getPositionZ());
         }
 
         public void initNormal() {
-            this.direction = node.getDirection();
+            this.directionX = node.getDirectionX();
+            this.directionY = node.getDirectionY();
+            this.directionZ = node.getDirectionZ();
             this.updateDistance();
         }
 
         public void initInverted() {
-            this.direction = node.getDirection().clone().multiply(-1.0);
+            this.directionX = -node.getDirectionX();
+            this.directionY = -node.getDirectionY();
+            this.directionZ = -node.getDirectionZ();
             this.updateDistance();
         }
 
         private final void updateDistance() {
-            this.distance = 0.5 * node.getPosition().distance(other.getPosition());
+            this.distance = 0.5 * node.distance(other);
         }
 
     }
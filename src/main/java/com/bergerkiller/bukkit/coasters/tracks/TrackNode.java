@@ -1,5 +1,7 @@
 package com.bergerkiller.bukkit.coasters.tracks;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -12,10 +14,8 @@ import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.TCCoasters;
-import com.bergerkiller.bukkit.coasters.editor.PlayerEditState;
 import com.bergerkiller.bukkit.coasters.particles.TrackParticle;
 import com.bergerkiller.bukkit.coasters.particles.TrackParticleArrow;
-import com.bergerkiller.bukkit.coasters.particles.TrackParticleState;
 import com.bergerkiller.bukkit.coasters.particles.TrackParticleText;
 import com.bergerkiller.bukkit.coasters.particles.TrackParticleWorld;
 import com.bergerkiller.bukkit.coasters.rails.TrackRailsWorld;
@@ -31,25 +31,46 @@ import com.bergerkiller.bukkit.tc.controller.components.RailPath;
  * and the 'up' vector.
  */
 public class TrackNode implements CoasterWorldAccess {
+    private final int _id;
     private TrackCoaster _coaster;
-    private Vector _pos, _up, _up_visual, _dir;
+    // Geometry is stored as primitives, vectors are only created at API boundaries
+    private double _posX, _posY, _posZ;
+    private double _upX, _upY, _upZ;
+    private double _upVisualX, _upVisualY, _upVisualZ;
+    private double _dirX, _dirY, _dirZ;
     //private TrackParticleItem _particle;
     private TrackParticleArrow _upParticleArrow;
     private List<TrackParticleText> _junctionParticles;
+    // Particles are only created while editors are nearby, see TrackWorld
+    private boolean _particlesActive;
+    protected IntVector3 _particleRegion;
     // Connections are automatically updated when connecting/disconnecting
     protected TrackConnection[] _connections;
 
     protected TrackNode(TrackCoaster group, Vector pos, Vector up) {
+        this._id = group.getPlugin().allocateNodeId();
         this._coaster = group;
-        this._pos = pos;
+        this._posX = pos.getX();
+        this._posY = pos.getY();
+        this._posZ = pos.getZ();
         this._connections = TrackConnection.EMPTY_ARR;
-        if (up.lengthSquared() < 1e-10) {
-            this._up = new Vector(0.0, 0.0, 0.0);
+        double upLengthSq = up.lengthSquared();
+        if (upLengthSq < 1e-10) {
+            this._upX = 0.0;
+            this._upY = 0.0;
+            this._upZ = 0.0;
         } else {
-            this._up = up.clone().normalize();
+            double n = 1.0 / Math.sqrt(upLengthSq);
+            this._upX = up.getX() * n;
+            this._upY = up.getY() * n;
+            this._upZ = up.getZ() * n;
         }
-        this._up_visual = this._up.clone();
-        this._dir = new Vector(0, 0, 1);
+        this._upVisualX = this._upX;
+        this._upVisualY = this._upY;
+        this._upVisualZ = this._upZ;
+        this._dirX = 0.0;
+        this._dirY = 0.0;
+        this._dirZ = 1.0;
 
         /*
         this._particle = group.getParticles().addParticleItem(this._pos);
@@ -63,17 +84,19 @@ public class TrackNode implements CoasterWorldAccess {
         });
         */
 
-        this._upParticleArrow = group.getParticles().addParticleArrow(this._pos, this._dir, this._up_visual);
-        this._upParticleArrow.setStateSource(new TrackParticleState.Source() {
-            @Override
-            public TrackParticleState getState(Player viewer) {
-                PlayerEditState editState = getPlugin().getEditState(viewer);
-                return editState.isEditing(TrackNode.this) ? 
-                        TrackParticleState.SELECTED : TrackParticleState.DEFAULT;
-            }
-        });
-
+        this._upParticleArrow = null;
         this._junctionParticles = Collections.emptyList();
+        this._particlesActive = false;
+        this._particleRegion = null;
+    }
+
+    /**
+     * Gets the unique id of this node. Ids of removed nodes are re-used by new nodes.
+     * 
+     * @return node id
+     */
+    public int getId() {
+        return this._id;
     }
 
     public TrackCoaster getCoaster() {
@@ -89,21 +112,87 @@ public class TrackNode implements CoasterWorldAccess {
     }
 
     public void setPosition(Vector position) {
-        if (!this._pos.equals(position)) {
-            this._pos = position.clone();
+        if (!isSame(this._posX, this._posY, this._posZ, position.getX(), position.getY(), position.getZ())) {
+            this._posX = position.getX();
+            this._posY = position.getY();
+            this._posZ = position.getZ();
             //this._particle.setPosition(this._pos);
-            this._upParticleArrow.setPosition(this._pos);
+            if (this._upParticleArrow != null) {
+                this._upParticleArrow.setPosition(position);
+            }
+            for (TrackConnection connection : this._connections) {
+                connection.invalidateCurve();
+            }
+            this.getTracks().updateNodeRegion(this);
             this.scheduleRefresh();
             this.markChanged();
         }
     }
 
+    /**
+     * Gets the direction of the track at this node. A new vector is returned
+     * every time, so changing it does not change this node. Use {@link #getDirectionX()}
+     * and friends in performance-critical code to avoid creating the vector.
+     * 
+     * @return direction
+     */
     public Vector getDirection() {
-        return this._dir;
+        return new Vector(this._dirX, this._dirY, this._dirZ);
+    }
+
+    public double getDirectionX() {
+        return this._dirX;
+    }
+
+    public double getDirectionY() {
+        return this._dirY;
     }
 
+    public double getDirectionZ() {
+        return this._dirZ;
+    }
+
+    /**
+     * Gets the position of this node. A new vector is returned every time, so changing it
+     * does not move this node, use {@link #setPosition(Vector)} for that. Use {@link #getPositionX()}
+     * and friends in performance-critical code to avoid creating the vector.
+     * 
+     * @return position
+     */
     public Vector getPosition() {
-        return this._pos;
+        return new Vector(this._posX, this._posY, this._posZ);
+    }
+
+    public double getPositionX() {
+        return this._posX;
+    }
+
+    public double getPositionY() {
+        return this._posY;
+    }
+
+    public double getPositionZ() {
+        return this._posZ;
+    }
+
+    /**
+     * Gets the squared distance between the positions of this node and another node
+     * 
+     * @param node
+     * @return squared distance
+     */
+    public double distanceSquared(TrackNode node) {
+        return MathUtil.distanceSquared(this._posX, this._posY, this._posZ, node._posX, node._posY, node._posZ);
+    }
+
+    /**
+     * Gets the distance between the positions of this node and another node
+     * 
+     * @param node
+     * @return distance
+     */
+    public double distance(TrackNode node) {
+        return MathUtil.distance(this._posX, this._posY, this._posZ, node._posX, node._posY, node._posZ);
     }
 
     /**
@@ -114,28 +203,36 @@ public class TrackNode implements CoasterWorldAccess {
      * @return spawn location
      */
     public Location getSpawnLocation(Vector orientation) {
-        Vector dir = this.getDirection().clone();
+        Vector dir = this.getDirection();
         if (dir.dot(orientation) < 0.0) {
             dir.multiply(-1.0);
         }
-        Vector pos = this.getPosition();
         return new Location(this.getWorld(),
-                pos.getX(), pos.getY(), pos.getZ(),
+                this._posX, this._posY, this._posZ,
                 MathUtil.getLookAtYaw(dir),
                 MathUtil.getLookAtPitch(dir.getX(),dir.getY(),dir.getZ()));
     }
 
     public Vector getUpPosition() {
-        return this._pos.clone().add(this._up.clone().multiply(0.4));
+        return new Vector(this._posX + 0.4 * this._upX,
+                          this._posY + 0.4 * this._upY,
+                          this._posZ + 0.4 * this._upZ);
     }
 
     public void setOrientation(Vector up) {
         // Assign up vector, normalize it to length 1
         double up_n = MathUtil.getNormalizationFactor(up);
         if (!Double.isInfinite(up_n)) {
-            up = up.clone().multiply(up_n);
-            if (!this._up.equals(up)) {
-                this._up = up;
+            double upX = up.getX() * up_n;
+            double upY = up.getY() * up_n;
+            double upZ = up.getZ() * up_n;
+            if (!isSame(this._upX, this._upY, this._upZ, upX, upY, upZ)) {
+                this._upX = upX;
+                this._upY = upY;
+                this._upZ = upZ;
+                for (TrackConnection connection : this._connections) {
+                    connection.invalidateCurve();
+                }
                 this.scheduleRefresh();
                 this.markChanged();
             }
@@ -146,15 +243,40 @@ public class TrackNode implements CoasterWorldAccess {
     private final void refreshOrientation() {
         // Calculate what kind of up vector is used 'visually'
         // This is on a 90-degree angle with the track itself (dir)
-        this._up_visual = this._dir.clone().crossProduct(this._up).crossProduct(this._dir);
-        double n = MathUtil.getNormalizationFactor(this._up_visual);
-        if (Double.isInfinite(n)) {
+        if (!this.setUpVisual(this._upX, this._upY, this._upZ)) {
             // Fallback for up-vectors in the same orientation as dir
-            this._up_visual = this._dir.clone().crossProduct(new Vector(1,1,1)).crossProduct(this._dir).normalize();
-        } else {
-            this._up_visual.multiply(n);
+            this.setUpVisual(1.0, 1.0, 1.0);
+        }
+        if (this._upParticleArrow != null) {
+            this._upParticleArrow.setDirection(this.getDirection(), this.getUpVisual());
         }
-        this._upParticleArrow.setDirection(this._dir, this._up_visual);
+    }
+
+    // Sets the visual up vector to (dir x up) x dir, normalized. Returns false if up is in the same orientation as dir.
+    private final boolean setUpVisual(double upX, double upY, double upZ) {
+        double cx = this._dirY * upZ - this._dirZ * upY;
+        double cy = this._dirZ * upX - this._dirX * upZ;
+        double cz = this._dirX * upY - this._dirY * upX;
+        double vx = cy * this._dirZ - cz * this._dirY;
+        double vy = cz * this._dirX - cx * this._dirZ;
+        double vz = cx * this._dirY - cy * this._dirX;
+        double n = MathUtil.getNormalizationFactor(vx, vy, vz);
+        if (Double.isInfinite(n)) {
+            return false;
+        }
+        this._upVisualX = vx * n;
+        this._upVisualY = vy * n;
+        this._upVisualZ = vz * n;
+        return true;
+    }
+
+    private Vector getUpVisual() {
+        return new Vector(this._upVisualX, this._upVisualY, this._upVisualZ);
+    }
+
+    // Same tolerance as used by Vector equals()
+    private static boolean isSame(double x1, double y1, double z1, double x2, double y2, double z2) {
+        return Math.abs(x1 - x2) < 1e-6 && Math.abs(y1 - y2) < 1e-6 && Math.abs(z1 - z2) < 1e-6;
     }
 
     /**
@@ -217,8 +339,27 @@ public class TrackNode implements CoasterWorldAccess {
         }
     }
 
+    /**
+     * Gets the up-vector orientation of this node. A new vector is returned every time, so changing it
+     * does not change this node, use {@link #setOrientation(Vector)} for that. Use {@link #getOrientationX()}
+     * and friends in performance-critical code to avoid creating the vector.
+     * 
+     * @return orientation
+     */
     public Vector getOrientation() {
-        return this._up;
+        return new Vector(this._upX, this._upY, this._upZ);
+    }
+
+    public double getOrientationX() {
+        return this._upX;
+    }
+
+    public double getOrientationY() {
+        return this._upY;
+    }
+
+    public double getOrientationZ() {
+        return this._upZ;
     }
 
     /**
@@ -228,42 +369,52 @@ public class TrackNode implements CoasterWorldAccess {
      */
     public void onShapeUpdated() {
         // Refresh dir
-        this._dir = new Vector();
+        double dirX = 0.0, dirY = 0.0, dirZ = 0.0;
         List<TrackConnection> connections = this.getSortedConnections();
         for (int i = 0; i < connections.size(); i++) {
             TrackConnection conn = connections.get(i);
             TrackNode neighbour = conn.getOtherNode(this);
 
-            Vector v = neighbour.getPosition().clone().subtract(this.getPosition());
-            double n = MathUtil.getNormalizationFactor(v);
+            double vx = neighbour._posX - this._posX;
+            double vy = neighbour._posY - this._posY;
+            double vz = neighbour._posZ - this._posZ;
+            double n = MathUtil.getNormalizationFactor(vx, vy, vz);
             if (!Double.isInfinite(n)) {
-                v.multiply(n);
+                vx *= n;
+                vy *= n;
+                vz *= n;
 
+                boolean add;
                 if (connections.size() > 2) {
                     // Best fit applies
-                    if (this._dir.dot(v) > 0.0) {
-                        this._dir.add(v);
-                    } else {
-                        this._dir.subtract(v);
-                    }
+                    add = (dirX * vx + dirY * vy + dirZ * vz) > 0.0;
                 } else {
                     // Force direction from node to node at all times
                     // Add/subtract alternate based on index
-                    if (i == 0) {
-                        this._dir.add(v);
-                    } else {
-                        this._dir.subtract(v);
-                    }
+                    add = (i == 0);
+                }
+                if (add) {
+                    dirX += vx;
+                    dirY += vy;
+                    dirZ += vz;
+                } else {
+                    dirX -= vx;
+                    dirY -= vy;
+                    dirZ -= vz;
                 }
             }
         }
 
         // Normalize
-        double n = MathUtil.getNormalizationFactor(this._dir);
+        double n = MathUtil.getNormalizationFactor(dirX, dirY, dirZ);
         if (Double.isInfinite(n)) {
-            this._dir = new Vector(0, 0, 1);
+            this._dirX = 0.0;
+            this._dirY = 0.0;
+            this._dirZ = 1.0;
         } else {
-            this._dir.multiply(n);
+            this._dirX = dirX * n;
+            this._dirY = dirY * n;
+            this._dirZ = dirZ * n;
         }
 
         // Recalculate the up-vector to ortho to dir
@@ -287,10 +438,45 @@ public class TrackNode implements CoasterWorldAccess {
             } else {
                 end.initInverted();
             }
+            conn.invalidateCurve();
         }
 
         // If more than 2 connections are added to this node, display junction labels
-        if (connections.size() > 2) {
+        this.updateJunctionParticles(connections);
+    }
+
+    /**
+     * Writes the direction and visual up-vector computed by {@link #onShapeUpdated()}
+     * 
+     * @param out stream to write to
+     * @throws IOException
+     */
+    protected void writeShape(DataOutput out) throws IOException {
+        out.writeDouble(this._dirX);
+        out.writeDouble(this._dirY);
+        out.writeDouble(this._dirZ);
+        out.writeDouble(this._upVisualX);
+        out.writeDouble(this._upVisualY);
+        out.writeDouble(this._upVisualZ);
+    }
+
+    /**
+     * Restores the direction and visual up-vector written by {@link #writeShape(DataOutput)},
+     * instead of computing them using {@link #onShapeUpdated()}
+     * 
+     * @param shape direction and visual up-vector, 6 values
+     */
+    protected void restoreShape(double[] shape) {
+        this._dirX = shape[0];
+        this._dirY = shape[1];
+        this._dirZ = shape[2];
+        this._upVisualX = shape[3];
+        this._upVisualY = shape[4];
+        this._upVisualZ = shape[5];
+    }
+
+    private void updateJunctionParticles(List<TrackConnection> connections) {
+        if (this._particlesActive && connections.size() > 2) {
             // Initialize or shrink list of particles as required
             if (this._junctionParticles.isEmpty()) {
                 this._junctionParticles = new ArrayList<TrackParticleText>(connections.size());
@@ -328,7 +514,9 @@ public class TrackNode implements CoasterWorldAccess {
 
     public void onStateUpdated(Player viewer) {
         //this._particle.onStateUpdated(viewer);
-        this._upParticleArrow.onStateUpdated(viewer);
+        if (this._upParticleArrow != null) {
+            this._upParticleArrow.onStateUpdated(viewer);
+        }
         for (TrackParticle juncParticle : this._junctionParticles) {
             juncParticle.onStateUpdated(viewer);
         }
@@ -362,8 +550,10 @@ public class TrackNode implements CoasterWorldAccess {
         ArrayList<TrackConnection> tmp = new ArrayList<TrackConnection>(this.getConnections());
         Vector[] tmp_vectors = new Vector[tmp.size()];
         for (int i = 0; i < tmp_vectors.length; i++) {
-            Vector tmp_pos = tmp.get(i).getOtherNode(this).getPosition();
-            tmp_vectors[i] = tmp_pos.clone().subtract(this.getPosition()).normalize();
+            TrackNode other = tmp.get(i).getOtherNode(this);
+            tmp_vectors[i] = new Vector(other._posX - this._posX,
+                                        other._posY - this._posY,
+                                        other._posZ - this._posZ).normalize();
         }
 
         // Use the connection with largest difference with the other connections as the base
@@ -405,16 +595,15 @@ public class TrackNode implements CoasterWorldAccess {
 
         // Perform the sorting logic based on yaw
         TrackConnection base = tmp.remove(baseIndex);
-        Vector bp = base.getOtherNode(this).getPosition();
-        final Vector p = this.getPosition();
-        final float base_yaw = MathUtil.getLookAtYaw(bp.getX()-p.getX(), bp.getZ()-p.getZ());
+        TrackNode bp = base.getOtherNode(this);
+        final float base_yaw = MathUtil.getLookAtYaw(bp._posX-this._posX, bp._posZ-this._posZ);
         Collections.sort(tmp, new Comparator<TrackConnection>() {
             @Override
             public int compare(TrackConnection o1, TrackConnection o2) {
-                Vector p1 = o1.getOtherNode(TrackNode.this).getPosition();
-                Vector p2 = o2.getOtherNode(TrackNode.this).getPosition();
-                float y1 = MathUtil.getLookAtYaw(p1.getX()-p.getX(), p1.getZ()-p.getZ()) - base_yaw;
-                float y2 = MathUtil.getLookAtYaw(p2.getX()-p.getX(), p2.getZ()-p.getZ()) - base_yaw;
+                TrackNode p1 = o1.getOtherNode(TrackNode.this);
+                TrackNode p2 = o2.getOtherNode(TrackNode.this);
+                float y1 = MathUtil.getLookAtYaw(p1._posX-_posX, p1._posZ-_posZ) - base_yaw;
+                float y2 = MathUtil.getLookAtYaw(p2._posX-_posX, p2._posZ-_posZ) - base_yaw;
                 while (y1 < 0.0f) y1 += 360.0f;
                 while (y2 < 0.0f) y2 += 360.0f;
                 return Float.compare(y1, y2);
@@ -441,8 +630,8 @@ public class TrackNode implements CoasterWorldAccess {
                         getViewDistance(cameraTransform, this.getUpPosition()));
     }
 
+    // Transforms the position, callers pass in a new vector
     private static double getViewDistance(Matrix4x4 cameraTransform, Vector pos) {
-        pos = pos.clone();
         cameraTransform.transformPoint(pos);
 
         // Behind the player
@@ -460,8 +649,47 @@ public class TrackNode implements CoasterWorldAccess {
         return Math.sqrt(pos.getX() * pos.getX() + pos.getY() * pos.getY()) / lim;
     }
 
+    /**
+     * Gets whether the particles of this node are currently displayed.
+     * This is the case while editors are nearby.
+     * 
+     * @return True if particles are active
+     */
+    public boolean isParticlesActive() {
+        return this._particlesActive;
+    }
+
+    /**
+     * Creates or destroys the particles of this node.
+     * Called by the {@link TrackWorld} when editors come near or leave.
+     * 
+     * @param active whether particles are created (true) or destroyed (false)
+     */
+    protected void setParticlesActive(boolean active) {
+        if (this._particlesActive == active) {
+            return;
+        }
+
+        this._particlesActive = active;
+        if (active) {
+            this._upParticleArrow = getParticles().addParticleArrow(this.getPosition(), this.getDirection(), this.getUpVisual());
+            this._upParticleArrow.setStateSource(getPlugin().getNodeStateSource(), this._id);
+            this.updateJunctionParticles(this.getSortedConnections());
+        } else {
+            this.destroyNodeParticles();
+        }
+    }
+
     public void destroyParticles() {
-        this._upParticleArrow.remove();
+        this._particlesActive = false;
+        this.destroyNodeParticles();
+    }
+
+    private void destroyNodeParticles() {
+        if (this._upParticleArrow != null) {
+            this._upParticleArrow.remove();
+            this._upParticleArrow = null;
+        }
         for (TrackParticle particle : this._junctionParticles) {
             particle.remove();
         }
@@ -469,7 +697,7 @@ public class TrackNode implements CoasterWorldAccess {
     }
 
     public IntVector3 getRailsBlock() {
-        return new IntVector3(getPosition().getX(), getPosition().getY(), getPosition().getZ());
+        return new IntVector3(this._posX, this._posY, this._posZ);
     }
     
     /**
@@ -525,28 +753,16 @@ public class TrackNode implements CoasterWorldAccess {
         RailPath.Builder builder = new RailPath.Builder();
         if (connection_a != null) {
             if (connection_a.getNodeA() == this) {
-                for (int n = 50; n >= 0; --n) {
-                    double t = 0.01 * n;
-                    builder.add(connection_a.getPathPoint(railsPos, t));
-                }
+                connection_a.addPathPoints(builder, railsPos, 0.5, -0.01, 51);
             } else {
-                for (int n = 50; n <= 100; n++) {
-                    double t = 0.01 * n;
-                    builder.add(connection_a.getPathPoint(railsPos, t));
-                }
+                connection_a.addPathPoints(builder, railsPos, 0.5, 0.01, 51);
             }
         }
         if (connection_b != null) {
             if (connection_b.getNodeA() == this) {
-                for (int n = 1; n <= 50; n++) {
-                    double t = 0.01 * n;
-                    builder.add(connection_b.getPathPoint(railsPos, t));
-                }
+                connection_b.addPathPoints(builder, railsPos, 0.01, 0.01, 50);
             } else {
-                for (int n = 100-1; n >= 50; --n) {
-                    double t = 0.01 * n;
-                    builder.add(connection_b.getPathPoint(railsPos, t));
-                }
+                connection_b.addPathPoints(builder, railsPos, 0.99, -0.01, 50);
             }
         }
         return builder.build();
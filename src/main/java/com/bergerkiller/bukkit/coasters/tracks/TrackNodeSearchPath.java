@@ -30,7 +30,7 @@ public class TrackNodeSearchPath {
 
     public void next(TrackNode node) {
         this.path.add(node);
-        this.cost += node.getPosition().distanceSquared(this.current.getPosition());
+        this.cost += node.distanceSquared(this.current);
         this.current = node;
     }
 
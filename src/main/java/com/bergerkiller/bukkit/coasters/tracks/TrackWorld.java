@@ -3,31 +3,62 @@ package com.bergerkiller.bukkit.coasters.tracks;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
+import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import com.bergerkiller.bukkit.coasters.TCCoasters;
+import com.bergerkiller.bukkit.coasters.stats.TrackEvent;
+import com.bergerkiller.bukkit.coasters.stats.TrackEventType;
+import com.bergerkiller.bukkit.coasters.stats.TrackProfile;
+import com.bergerkiller.bukkit.coasters.stats.TrackStatistics;
 import com.bergerkiller.bukkit.coasters.world.CoasterWorldAccess;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 
 /**
  * Stores all the track groups and the special connections between track nodes.
  * There is one storage per world.
  */
 public class TrackWorld extends CoasterWorldAccess.Component {
+    /**
+     * Number of bits of block coordinates used to compute the region in which a node's particles are created
+     */
+    public static final int PARTICLE_REGION_BITS = 5;
+    /**
+     * Distance from an editor within which the particles of nodes are created
+     */
+    public static final double PARTICLE_ACTIVATION_RADIUS = 160.0;
     private final List<TrackCoaster> _coasters;
     private final Set<TrackNode> _changedNodes;
+    // Coasters and players that scheduled the changed nodes for refreshing, noted as cause in the profile
+    private final Set<TrackCoaster> _refreshCoasters;
+    private final Set<Player> _refreshPlayers;
+    private final Map<IntVector3, List<TrackNode>> _nodesByRegion;
+    private final Map<IntVector3, List<TrackConnection>> _connectionsByRegion;
+    private final Set<IntVector3> _activeRegions;
+    private List<RegionArea> _viewerAreas;
     private boolean _is_loading;
 
     public TrackWorld(CoasterWorldAccess world) {
         super(world);
         this._coasters = new ArrayList<TrackCoaster>();
         this._changedNodes = new HashSet<TrackNode>();
+        this._refreshCoasters = new HashSet<TrackCoaster>();
+        this._refreshPlayers = new HashSet<Player>();
+        this._nodesByRegion = new HashMap<IntVector3, List<TrackNode>>();
+        this._connectionsByRegion = new HashMap<IntVector3, List<TrackConnection>>();
+        this._activeRegions = new HashSet<IntVector3>();
+        this._viewerAreas = new ArrayList<RegionArea>();
         this._is_loading = false;
     }
 
@@ -179,6 +210,7 @@ public class TrackWorld extends CoasterWorldAccess.Component {
                 removeConnectionFromNode(nodeB, connection);
                 scheduleNodeRefresh(nodeA);
                 scheduleNodeRefresh(nodeB);
+                removeConnectionRegions(connection);
                 connection.destroyParticles();
                 connection.markChanged();
                 return; // Done
@@ -210,6 +242,7 @@ public class TrackWorld extends CoasterWorldAccess.Component {
             scheduleNodeRefresh(other);
 
             // Destroy connection
+            removeConnectionRegions(conn);
             conn.destroyParticles();
             conn.markChanged();
         }
@@ -238,6 +271,11 @@ public class TrackWorld extends CoasterWorldAccess.Component {
         }
         this._coasters.clear();
         this._changedNodes.clear();
+        this._refreshCoasters.clear();
+        this._refreshPlayers.clear();
+        this._nodesByRegion.clear();
+        this._connectionsByRegion.clear();
+        this._activeRegions.clear();
 
         this.getRails().clear();
 
@@ -277,10 +315,22 @@ public class TrackWorld extends CoasterWorldAccess.Component {
             coaster.markUnchanged();
         }
 
-        // Force a refresh of all nodes contained
-        this._is_loading = false;
+        // Restore the node shapes and rails information of coasters that were not changed since the cache was saved.
+        // This is done once all coasters are loaded, because nodes can connect with nodes of other coasters.
+        List<TrackCoaster> refreshedCoasters = new ArrayList<TrackCoaster>(this._coasters.size());
         for (TrackCoaster coaster : this._coasters) {
-            this._changedNodes.addAll(coaster.getNodes());
+            if (!coaster.restoreCache()) {
+                refreshedCoasters.add(coaster);
+            }
+        }
+
+        // Force a refresh of all nodes of the other coasters. This also refreshes
+        // the nodes of restored coasters that are connected to these nodes.
+        this._is_loading = false;
+        for (TrackCoaster coaster : refreshedCoasters) {
+            for (TrackNode node : coaster.getNodes()) {
+                this.scheduleNodeRefresh(node);
+            }
         }
     }
 
@@ -288,44 +338,95 @@ public class TrackWorld extends CoasterWorldAccess.Component {
      * Called every tick to update any changed nodes
      */
     public void updateAll() {
+        TrackStatistics stats = this.getPlugin().getStatistics();
+        long startTime = stats.startTimer();
+
+        this.updateParticleRegions();
+
         if (!this._changedNodes.isEmpty()) {
+            TrackProfile profile = stats.getProfile();
+            if (profile != null) {
+                for (TrackCoaster coaster : this._refreshCoasters) {
+                    profile.addCause("coaster:" + coaster.getName());
+                }
+                for (Player player : this._refreshPlayers) {
+                    profile.addCause("player:" + player.getName());
+                }
+            }
+
             // Refresh all the node's shape and track the connections that also changed
+            TrackEvent refreshEvent = TrackEventType.NODE_REFRESH.begin();
             HashSet<TrackConnection> changedConnections = new HashSet<TrackConnection>(this._changedNodes.size()+1);
             for (TrackNode changedNode : this._changedNodes) {
+                changedNode.getCoaster().markCacheOutdated();
                 changedNode.onShapeUpdated();
                 changedConnections.addAll(changedNode.getConnections());
             }
             for (TrackConnection changedConnection : changedConnections) {
                 changedConnection.onShapeUpdated();
             }
+            stats.nodesRefreshed.add(this._changedNodes.size());
+            stats.connectionsRefreshed.add(changedConnections.size());
+            refreshEvent.set(0, this._changedNodes.size()).set(1, changedConnections.size()).commit();
 
             // Purge all cached rail information for the changed nodes
+            TrackEvent railsEvent = TrackEventType.RAILS_REBUILD.begin();
+            long purgeStartTime = stats.startTimer();
             this.getRails().purge(this._changedNodes);
+            stats.railsPurgeTime.addTimeSince(purgeStartTime);
 
             // Re-create all the cached rail information for the changed nodes
+            long storeStartTime = stats.startTimer();
             for (TrackNode changedNode : this._changedNodes) {
                 this.getRails().store(changedNode);
             }
+            stats.railsStoreTime.addTimeSince(storeStartTime);
+            railsEvent.set(0, this._changedNodes.size()).set(1, false).commit();
             this._changedNodes.clear();
         }
+        this._refreshCoasters.clear();
+        this._refreshPlayers.clear();
+
+        stats.trackUpdateTime.addTimeSince(startTime);
     }
 
     /**
-     * Schedules a node for refreshing it's shape and path information in the world for the next tick
+     * Schedules a node for refreshing it's shape and path information in the world for the next tick.
+     * The coaster of the node is noted as the cause of the refresh.
      * 
      * @param node
      */
     public void scheduleNodeRefresh(TrackNode node) {
         if (!this._is_loading) {
-            this._changedNodes.add(node);
-            for (TrackConnection conn_a : node._connections) {
-                TrackNode other_a = conn_a.getOtherNode(node);
-                this._changedNodes.add(other_a);
-                for (TrackConnection conn_b : other_a._connections) {
-                    if (conn_a != conn_b) {
-                        TrackNode other_b = conn_b.getOtherNode(other_a);
-                        this._changedNodes.add(other_b);
-                    }
+            this._refreshCoasters.add(node.getCoaster());
+            this.addChangedNodes(node);
+        }
+    }
+
+    /**
+     * Schedules a node for refreshing it's shape and path information in the world for the next tick.
+     * The player is noted as the cause of the refresh.
+     * 
+     * @param node
+     * @param player that edited the node
+     */
+    public void scheduleNodeRefresh(TrackNode node, Player player) {
+        if (!this._is_loading) {
+            this._refreshPlayers.add(player);
+            this.addChangedNodes(node);
+        }
+    }
+
+    // Adds a node, and the nodes whose shape depends on it, to the nodes refreshed the next tick
+    private void addChangedNodes(TrackNode node) {
+        this._changedNodes.add(node);
+        for (TrackConnection conn_a : node._connections) {
+            TrackNode other_a = conn_a.getOtherNode(node);
+            this._changedNodes.add(other_a);
+            for (TrackConnection conn_b : other_a._connections) {
+                if (conn_a != conn_b) {
+                    TrackNode other_b = conn_b.getOtherNode(other_a);
+                    this._changedNodes.add(other_b);
                 }
             }
         }
@@ -342,6 +443,221 @@ public class TrackWorld extends CoasterWorldAccess.Component {
         }
     }
 
+    /**
+     * Adds a node to the region it is in, creating its particles when editors are nearby
+     * 
+     * @param node
+     */
+    protected void addNodeRegion(TrackNode node) {
+        IntVector3 region = getRegion(node);
+        node._particleRegion = region;
+        List<TrackNode> nodes = this._nodesByRegion.get(region);
+        if (nodes == null) {
+            nodes = new ArrayList<TrackNode>();
+            this._nodesByRegion.put(region, nodes);
+            if (this.isRegionViewed(region)) {
+                this._activeRegions.add(region);
+            }
+        }
+        nodes.add(node);
+        node.setParticlesActive(this._activeRegions.contains(region));
+    }
+
+    /**
+     * Removes a node from the region it is in
+     * 
+     * @param node
+     */
+    protected void removeNodeRegion(TrackNode node) {
+        IntVector3 region = node._particleRegion;
+        if (region != null) {
+            node._particleRegion = null;
+            List<TrackNode> nodes = this._nodesByRegion.get(region);
+            if (nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+                this._nodesByRegion.remove(region);
+                if (!this._connectionsByRegion.containsKey(region)) {
+                    this._activeRegions.remove(region);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a node to the region it is in after its position changed
+     * 
+     * @param node
+     */
+    protected void updateNodeRegion(TrackNode node) {
+        if (node._particleRegion != null && !node._particleRegion.equals(getRegion(node))) {
+            this.removeNodeRegion(node);
+            this.addNodeRegion(node);
+        }
+    }
+
+    /**
+     * Adds a connection to all the regions its curve lies in, creating its particles when editors are nearby.
+     * The regions are those of the bounding box of the curve's control points, which contains the entire curve.
+     * Must be called after the shape of the connection changes.
+     * 
+     * @param connection
+     */
+    protected void updateConnectionRegions(TrackConnection connection) {
+        TrackNode nA = connection._endA.node;
+        TrackNode nB = connection._endB.node;
+        TrackConnection.EndPoint eA = connection._endA;
+        TrackConnection.EndPoint eB = connection._endB;
+        double cAx = nA.getPositionX() + eA.distance * eA.directionX;
+        double cAy = nA.getPositionY() + eA.distance * eA.directionY;
+        double cAz = nA.getPositionZ() + eA.distance * eA.directionZ;
+        double cBx = nB.getPositionX() + eB.distance * eB.directionX;
+        double cBy = nB.getPositionY() + eB.distance * eB.directionY;
+        double cBz = nB.getPositionZ() + eB.distance * eB.directionZ;
+        IntVector3 min = new IntVector3(
+                MathUtil.floor(min(nA.getPositionX(), nB.getPositionX(), cAx, cBx)) >> PARTICLE_REGION_BITS,
+                MathUtil.floor(min(nA.getPositionY(), nB.getPositionY(), cAy, cBy)) >> PARTICLE_REGION_BITS,
+                MathUtil.floor(min(nA.getPositionZ(), nB.getPositionZ(), cAz, cBz)) >> PARTICLE_REGION_BITS);
+        IntVector3 max = new IntVector3(
+                MathUtil.floor(max(nA.getPositionX(), nB.getPositionX(), cAx, cBx)) >> PARTICLE_REGION_BITS,
+                MathUtil.floor(max(nA.getPositionY(), nB.getPositionY(), cAy, cBy)) >> PARTICLE_REGION_BITS,
+                MathUtil.floor(max(nA.getPositionZ(), nB.getPositionZ(), cAz, cBz)) >> PARTICLE_REGION_BITS);
+        if (min.equals(connection._particleRegionMin) && max.equals(connection._particleRegionMax)) {
+            return;
+        }
+
+        this.removeConnectionRegions(connection);
+        connection._particleRegionMin = min;
+        connection._particleRegionMax = max;
+        for (int x = min.x; x <= max.x; x++) {
+            for (int y = min.y; y <= max.y; y++) {
+                for (int z = min.z; z <= max.z; z++) {
+                    IntVector3 region = new IntVector3(x, y, z);
+                    List<TrackConnection> connections = this._connectionsByRegion.get(region);
+                    if (connections == null) {
+                        connections = new ArrayList<TrackConnection>();
+                        this._connectionsByRegion.put(region, connections);
+                        if (this.isRegionViewed(region)) {
+                            this._activeRegions.add(region);
+                        }
+                    }
+                    connections.add(connection);
+                }
+            }
+        }
+
+        // Only the flag is set here, the particles are updated by the caller after the shape changed
+        connection._particlesActive = this.isConnectionViewed(connection);
+    }
+
+    /**
+     * Removes a connection from all the regions it is in
+     * 
+     * @param connection
+     */
+    protected void removeConnectionRegions(TrackConnection connection) {
+        IntVector3 min = connection._particleRegionMin;
+        IntVector3 max = connection._particleRegionMax;
+        if (min == null || max == null) {
+            return;
+        }
+        connection._particleRegionMin = null;
+        connection._particleRegionMax = null;
+        for (int x = min.x; x <= max.x; x++) {
+            for (int y = min.y; y <= max.y; y++) {
+                for (int z = min.z; z <= max.z; z++) {
+                    IntVector3 region = new IntVector3(x, y, z);
+                    List<TrackConnection> connections = this._connectionsByRegion.get(region);
+                    if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+                        this._connectionsByRegion.remove(region);
+                        if (!this._nodesByRegion.containsKey(region)) {
+                            this._activeRegions.remove(region);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Creates the particles of nodes in the regions editors came near, and destroys those of the regions they left
+    private void updateParticleRegions() {
+        List<RegionArea> areas = new ArrayList<RegionArea>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (this.getParticles().isViewing(player)) {
+                RegionArea area = RegionArea.around(player.getEyeLocation().toVector(), PARTICLE_ACTIVATION_RADIUS);
+                if (!areas.contains(area)) {
+                    areas.add(area);
+                }
+            }
+        }
+
+        // Nothing changes while no editor crossed a region boundary
+        if (areas.size() == this._viewerAreas.size() && this._viewerAreas.containsAll(areas)) {
+            return;
+        }
+        this._viewerAreas = areas;
+
+        // Connections also pass through regions without nodes, so those regions are checked as well
+        HashSet<TrackConnection> changedConnections = new HashSet<TrackConnection>();
+        for (Map.Entry<IntVector3, List<TrackNode>> entry : this._nodesByRegion.entrySet()) {
+            IntVector3 region = entry.getKey();
+            boolean active = this.isRegionViewed(region);
+            if (active ? this._activeRegions.add(region) : this._activeRegions.remove(region)) {
+                for (TrackNode node : entry.getValue()) {
+                    node.setParticlesActive(active);
+                }
+                List<TrackConnection> connections = this._connectionsByRegion.get(region);
+                if (connections != null) {
+                    changedConnections.addAll(connections);
+                }
+            }
+        }
+        for (Map.Entry<IntVector3, List<TrackConnection>> entry : this._connectionsByRegion.entrySet()) {
+            IntVector3 region = entry.getKey();
+            if (!this._nodesByRegion.containsKey(region)) {
+                boolean active = this.isRegionViewed(region);
+                if (active ? this._activeRegions.add(region) : this._activeRegions.remove(region)) {
+                    changedConnections.addAll(entry.getValue());
+                }
+            }
+        }
+
+        // A connection is active while any of its regions is
+        for (TrackConnection connection : changedConnections) {
+            connection.setParticlesActive(this.isConnectionViewed(connection));
+        }
+    }
+
+    private boolean isConnectionViewed(TrackConnection connection) {
+        for (RegionArea area : this._viewerAreas) {
+            if (area.intersects(connection._particleRegionMin, connection._particleRegionMax)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRegionViewed(IntVector3 region) {
+        for (RegionArea area : this._viewerAreas) {
+            if (area.contains(region)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double min(double a, double b, double c, double d) {
+        return Math.min(Math.min(a, b), Math.min(c, d));
+    }
+
+    private static double max(double a, double b, double c, double d) {
+        return Math.max(Math.max(a, b), Math.max(c, d));
+    }
+
+    private static IntVector3 getRegion(TrackNode node) {
+        return new IntVector3(MathUtil.floor(node.getPositionX()) >> PARTICLE_REGION_BITS,
+                              MathUtil.floor(node.getPositionY()) >> PARTICLE_REGION_BITS,
+                              MathUtil.floor(node.getPositionZ()) >> PARTICLE_REGION_BITS);
+    }
+
     /**
      * Saves all coasters stored inside the world to disk
      * 
@@ -360,16 +676,27 @@ public class TrackWorld extends CoasterWorldAccess.Component {
                 File folder = getConfigFolder();
                 File tmpFile = new File(folder, baseName + ".csv.tmp");
                 File realFile = new File(folder, baseName + ".csv");
+                File cacheFile = coaster.getCacheFile();
                 if (tmpFile.exists()) {
                     tmpFile.delete();
                 }
                 if (realFile.exists()) {
                     realFile.delete();
                 }
+                if (cacheFile.exists()) {
+                    cacheFile.delete();
+                }
             } else {
                 coaster.save(autosave);
             }
         }
+
+        // Save the caches of saved coasters, but only once all nodes have been refreshed
+        if (this._changedNodes.isEmpty()) {
+            for (TrackCoaster coaster : this._coasters) {
+                coaster.saveCache();
+            }
+        }
     }
 
     private static void addConnectionToNode(TrackNode node, TrackConnection connection) {
@@ -392,4 +719,52 @@ public class TrackWorld extends CoasterWorldAccess.Component {
             node._connections = TrackConnection.EMPTY_ARR;
         }
     }
+
+    // A cuboid area of particle regions around an editor
+    private static class RegionArea {
+        public final int minX, minY, minZ;
+        public final int maxX, maxY, maxZ;
+
+        public RegionArea(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.minX = minX; this.minY = minY; this.minZ = minZ;
+            this.maxX = maxX; this.maxY = maxY; this.maxZ = maxZ;
+        }
+
+        public boolean contains(IntVector3 region) {
+            return region.x >= minX && region.y >= minY && region.z >= minZ &&
+                   region.x <= maxX && region.y <= maxY && region.z <= maxZ;
+        }
+
+        public boolean intersects(IntVector3 min, IntVector3 max) {
+            return max.x >= minX && max.y >= minY && max.z >= minZ &&
+                   min.x <= maxX && min.y <= maxY && min.z <= maxZ;
+        }
+
+        @Override
+        public int hashCode() {
+            return minX + 31 * (minY + 31 * minZ);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (o instanceof RegionArea) {
+                RegionArea other = (RegionArea) o;
+                return minX == other.minX && minY == other.minY && minZ == other.minZ &&
+                       maxX == other.maxX && maxY == other.maxY && maxZ == other.maxZ;
+            } else {
+                return false;
+            }
+        }
+
+        public static RegionArea around(Vector position, double radius) {
+            return new RegionArea(MathUtil.floor(position.getX() - radius) >> PARTICLE_REGION_BITS,
+                                  MathUtil.floor(position.getY() - radius) >> PARTICLE_REGION_BITS,
+                                  MathUtil.floor(position.getZ() - radius) >> PARTICLE_REGION_BITS,
+                                  MathUtil.floor(position.getX() + radius) >> PARTICLE_REGION_BITS,
+                                  MathUtil.floor(position.getY() + radius) >> PARTICLE_REGION_BITS,
+                                  MathUtil.floor(position.getZ() + radius) >> PARTICLE_REGION_BITS);
+        }
+    }
 }